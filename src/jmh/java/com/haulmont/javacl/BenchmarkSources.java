@@ -0,0 +1,71 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.io.FileUtils;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Generates dynamic sources for the benchmarks in a temporary root directory
+ */
+class BenchmarkSources {
+    final File rootDir;
+
+    BenchmarkSources() throws IOException {
+        this.rootDir = Files.createTempDirectory("javacl-benchmark").toFile();
+    }
+
+    /**
+     * Writes a chain of classes in separate packages, each class imports the previous one
+     *
+     * @return name of the last class of the chain
+     */
+    String writeChain(int depth, int classesPerPackage) throws IOException {
+        String previousClassName = null;
+        for (int level = 0; level < depth; level++) {
+            String packageName = "level" + level;
+            for (int i = 0; i < classesPerPackage; i++) {
+                String className = "L" + level + "C" + i;
+                StringBuilder src = new StringBuilder("package ").append(packageName).append(";\n\n");
+                if (previousClassName != null) {
+                    src.append("import ").append(previousClassName).append(";\n\n");
+                }
+                src.append("public class ").append(className).append(" {\n");
+                if (previousClassName != null) {
+                    String previousSimpleName = previousClassName.substring(previousClassName.lastIndexOf('.') + 1);
+                    src.append("    public ").append(previousSimpleName).append(" previous() {\n");
+                    src.append("        return new ").append(previousSimpleName).append("();\n");
+                    src.append("    }\n");
+                }
+                src.append("}\n");
+                write(packageName + "." + className, src.toString());
+            }
+            previousClassName = packageName + ".L" + level + "C0";
+        }
+        return previousClassName;
+    }
+
+    void write(String className, String src) throws IOException {
+        File file = new File(rootDir, className.replace('.', '/') + SourceProvider.JAVA_EXT);
+        FileUtils.writeStringToFile(file, src);
+        // sources should be older than the compiled classes
+        file.setLastModified(System.currentTimeMillis() - 60000);
+    }
+
+    JavaClassLoader createLoader() {
+        JavaClassLoader javaClassLoader = new JavaClassLoader(getClass().getClassLoader(), rootDir.getAbsolutePath(), null);
+        javaClassLoader.setApplicationContext(new XmlWebApplicationContext() {
+            @Override
+            public void refresh() {
+                // no beans to update
+            }
+        });
+        return javaClassLoader;
+    }
+
+    void delete() throws IOException {
+        FileUtils.deleteDirectory(rootDir);
+    }
+}
@@ -0,0 +1,48 @@
+package com.haulmont.javacl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compilation of a single class without dependencies by a new loader,
+ * so neither the compiled classes nor the compiler file managers are reused
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColdCompileBenchmark {
+    private BenchmarkSources sources;
+    private JavaClassLoader javaClassLoader;
+    private String className;
+
+    @Setup(Level.Trial)
+    public void setUpSources() throws IOException {
+        sources = new BenchmarkSources();
+        className = sources.writeChain(1, 1);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpLoader() {
+        javaClassLoader = sources.createLoader();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownLoader() {
+        javaClassLoader.destroy();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownSources() throws IOException {
+        sources.delete();
+    }
+
+    @Benchmark
+    public Class compile() throws ClassNotFoundException {
+        return javaClassLoader.loadClass(className);
+    }
+}
@@ -0,0 +1,48 @@
+package com.haulmont.javacl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading of the sources and imports of a class and all its dependencies
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollectDependenciesBenchmark {
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    @Param({"1", "10"})
+    public int classesPerPackage;
+
+    private BenchmarkSources sources;
+    private JavaClassLoader javaClassLoader;
+    private String rootClassName;
+
+    @Setup
+    public void setUp() throws Exception {
+        sources = new BenchmarkSources();
+        rootClassName = sources.writeChain(depth, classesPerPackage);
+        javaClassLoader = sources.createLoader();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        javaClassLoader.destroy();
+        sources.delete();
+    }
+
+    @Benchmark
+    public int collectDependencies() throws IOException {
+        SourcesAndDependencies sourcesAndDependencies = new SourcesAndDependencies(javaClassLoader);
+        sourcesAndDependencies.addSource(rootClassName);
+        sourcesAndDependencies.collectDependencies(rootClassName);
+        return sourcesAndDependencies.sources.size();
+    }
+}
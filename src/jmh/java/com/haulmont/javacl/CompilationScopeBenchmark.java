@@ -0,0 +1,43 @@
+package com.haulmont.javacl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check of an unmodified class whose dependency chain has the given depth
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilationScopeBenchmark {
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    private BenchmarkSources sources;
+    private JavaClassLoader javaClassLoader;
+    private String rootClassName;
+
+    @Setup
+    public void setUp() throws Exception {
+        sources = new BenchmarkSources();
+        rootClassName = sources.writeChain(depth, 1);
+        javaClassLoader = sources.createLoader();
+        javaClassLoader.loadClass(rootClassName);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        javaClassLoader.destroy();
+        sources.delete();
+    }
+
+    @Benchmark
+    public boolean compilationNeeded() throws ClassNotFoundException {
+        return new CompilationScope(javaClassLoader, rootClassName).compilationNeeded();
+    }
+}
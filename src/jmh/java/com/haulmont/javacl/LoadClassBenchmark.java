@@ -0,0 +1,57 @@
+package com.haulmont.javacl;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * loadClass of already compiled dynamic classes and of classes of the parent class loader
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadClassBenchmark {
+    private static final String PARENT_CLASS_NAME = "java.util.ArrayList";
+
+    /**
+     * "none" to check sources on each call, "watch" or "poll" for background change tracking
+     */
+    @Param({"none", "watch"})
+    public String changeTracking;
+
+    private BenchmarkSources sources;
+    private JavaClassLoader javaClassLoader;
+    private String dynamicClassName;
+
+    @Setup
+    public void setUp() throws Exception {
+        sources = new BenchmarkSources();
+        dynamicClassName = sources.writeChain(4, 4);
+        javaClassLoader = sources.createLoader();
+        javaClassLoader.setChangeTracking("none".equals(changeTracking) ? null : changeTracking);
+        javaClassLoader.loadClass(dynamicClassName);
+        // let the tracker register the tree and verify the class at the current generation
+        Thread.sleep(500);
+        javaClassLoader.loadClass(dynamicClassName);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        javaClassLoader.destroy();
+        sources.delete();
+    }
+
+    @Benchmark
+    public Class dynamicClassCacheHit() throws ClassNotFoundException {
+        return javaClassLoader.loadClass(dynamicClassName);
+    }
+
+    @Benchmark
+    public Class parentClass() throws ClassNotFoundException {
+        return javaClassLoader.loadClass(PARENT_CLASS_NAME);
+    }
+}
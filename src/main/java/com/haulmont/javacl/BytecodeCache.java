@@ -0,0 +1,247 @@
+package com.haulmont.javacl;
+
+import com.google.common.collect.Multimap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Persistent storage of compiled byte code and dependency links, so unchanged sources
+ * do not have to be recompiled after restart. Dependent links are restored from the dependencies
+ * of the loaded classes.
+ * <p/>
+ * There is one entry file per source. The entry is valid only if the digest of the source,
+ * the digests of all its dependencies and the classpath entries with their sizes and modification times
+ * and compiler options are the same as at the moment of compilation.
+ */
+class BytecodeCache {
+    private static final int FORMAT_VERSION = 1;
+    private static final String ENTRY_EXT = ".bin";
+
+    private static Log log = LogFactory.getLog(BytecodeCache.class);
+
+    private final File cacheDir;
+    private final String environmentDigest;
+
+    BytecodeCache(File cacheDir, String classPath, List<String> compilerOptions) {
+        this.cacheDir = cacheDir;
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (String path : classPath.split(File.pathSeparator)) {
+            if (StringUtils.isNotBlank(path)) {
+                // a jar replaced under the same name changes the API the sources are compiled against
+                File file = new File(path);
+                hasher.putUnencodedChars(path).putLong(file.length()).putLong(file.lastModified());
+            }
+        }
+        for (String option : compilerOptions) {
+            hasher.putUnencodedChars(option);
+        }
+        this.environmentDigest = hasher.hash().toString();
+    }
+
+    /**
+     * Loads byte code for all sources of the compilation.
+     *
+     * @return byte code of all classes, or null if at least one entry is missing or stale
+     */
+    Map<String, byte[]> load(Map<String, CharSequence> sources, Multimap<String, String> dependencies) {
+        Map<String, String> digests = new HashMap<>();
+        Map<String, byte[]> byteCode = new HashMap<>();
+        for (String className : sources.keySet()) {
+            Entry entry = readEntry(className);
+            if (entry == null || !isValid(entry, sources, dependencies, digests)) {
+                return null;
+            }
+            byteCode.putAll(entry.classes);
+        }
+        log.debug("Byte code for " + sources.keySet() + " loaded from cache");
+        return byteCode;
+    }
+
+    /**
+     * Stores byte code produced by the compilation. Classes are grouped by their top level source.
+     */
+    void store(Map<String, CharSequence> sources, Map<String, byte[]> byteCode, Multimap<String, String> dependencies) {
+        Map<String, Entry> entries = new HashMap<>();
+        for (Map.Entry<String, byte[]> classEntry : byteCode.entrySet()) {
+            String containerClassName = StringUtils.substringBefore(classEntry.getKey(), "$");
+            if (!sources.containsKey(containerClassName)) {
+                // secondary top level class, it is stored with the source it is declared in
+                containerClassName = getSourceClassName(classEntry.getKey(), classEntry.getValue());
+            }
+            if (containerClassName == null || !sources.containsKey(containerClassName)) {
+                // the entry of the declaring source would be incomplete without the class
+                log.debug("Source of class " + classEntry.getKey() + " is unknown, byte code is not cached");
+                return;
+            }
+
+            Entry entry = entries.get(containerClassName);
+            if (entry == null) {
+                entry = createEntry(containerClassName, sources, dependencies);
+                entries.put(containerClassName, entry);
+            }
+            entry.classes.put(classEntry.getKey(), classEntry.getValue());
+        }
+
+        for (Entry entry : entries.values()) {
+            writeEntry(entry);
+        }
+    }
+
+    /**
+     * @return name of the source class from the source file recorded in the byte code, null if it is unknown
+     */
+    private String getSourceClassName(String className, byte[] byteCode) {
+        String sourceFile;
+        try {
+            sourceFile = ClassFile.parse(byteCode).getSourceFile();
+        } catch (IOException e) {
+            log.debug("Unable to read source file of class " + className, e);
+            return null;
+        }
+        if (sourceFile == null || !sourceFile.endsWith(".java")) {
+            return null;
+        }
+        String packagePrefix = className.contains(".") ? StringUtils.substringBeforeLast(className, ".") + "." : "";
+        return packagePrefix + StringUtils.removeEnd(sourceFile, ".java");
+    }
+
+    private Entry createEntry(String className, Map<String, CharSequence> sources, Multimap<String, String> dependencies) {
+        Entry entry = new Entry(className);
+        entry.sourceDigest = SourceFingerprint.digest(sources.get(className));
+        for (String dependencyName : dependencies.get(className)) {
+            CharSequence dependencySource = sources.get(dependencyName);
+            entry.dependencyDigests.put(dependencyName, dependencySource != null ? SourceFingerprint.digest(dependencySource) : "");
+        }
+        return entry;
+    }
+
+    private boolean isValid(Entry entry, Map<String, CharSequence> sources,
+                            Multimap<String, String> dependencies, Map<String, String> digests) {
+        if (!entry.sourceDigest.equals(getDigest(entry.className, sources, digests))) {
+            return false;
+        }
+        if (!entry.dependencyDigests.keySet().equals(new HashSet<>(dependencies.get(entry.className)))) {
+            return false;
+        }
+        for (Map.Entry<String, String> dependency : entry.dependencyDigests.entrySet()) {
+            if (!dependency.getValue().equals(getDigest(dependency.getKey(), sources, digests))) {
+                return false;
+            }
+        }
+        return !entry.classes.isEmpty();
+    }
+
+    private String getDigest(String className, Map<String, CharSequence> sources, Map<String, String> digests) {
+        String digest = digests.get(className);
+        if (digest == null) {
+            CharSequence source = sources.get(className);
+            digest = source != null ? SourceFingerprint.digest(source) : "";
+            digests.put(className, digest);
+        }
+        return digest;
+    }
+
+    private File getEntryFile(String className) {
+        return new File(cacheDir, className + ENTRY_EXT);
+    }
+
+    private Entry readEntry(String className) {
+        File file = getEntryFile(className);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION || !environmentDigest.equals(in.readUTF())) {
+                return null;
+            }
+            Entry entry = new Entry(in.readUTF());
+            if (!className.equals(entry.className)) {
+                return null;
+            }
+            entry.sourceDigest = in.readUTF();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                entry.dependencyDigests.put(in.readUTF(), in.readUTF());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                entry.classes.put(name, bytes);
+            }
+            return entry;
+        } catch (IOException e) {
+            log.warn("Unable to read byte code cache entry " + file, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeEntry(Entry entry) {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            log.warn("Unable to create byte code cache directory " + cacheDir);
+            return;
+        }
+
+        File file = getEntryFile(entry.className);
+        File tmpFile = new File(cacheDir, entry.className + ENTRY_EXT + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(environmentDigest);
+            out.writeUTF(entry.className);
+            out.writeUTF(entry.sourceDigest);
+            out.writeInt(entry.dependencyDigests.size());
+            for (Map.Entry<String, String> dependency : entry.dependencyDigests.entrySet()) {
+                out.writeUTF(dependency.getKey());
+                out.writeUTF(dependency.getValue());
+            }
+            out.writeInt(entry.classes.size());
+            for (Map.Entry<String, byte[]> classEntry : entry.classes.entrySet()) {
+                out.writeUTF(classEntry.getKey());
+                out.writeInt(classEntry.getValue().length);
+                out.write(classEntry.getValue());
+            }
+            out.close();
+            out = null;
+
+            if ((file.exists() && !file.delete()) || !tmpFile.renameTo(file)) {
+                log.warn("Unable to write byte code cache entry " + file);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write byte code cache entry " + file, e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Cached byte code and dependency links of one source
+     */
+    static class Entry {
+        final String className;
+        String sourceDigest;
+        final Map<String, String> dependencyDigests = new HashMap<>();
+        final Map<String, byte[]> classes = new HashMap<>();
+
+        Entry(String className) {
+            this.className = className;
+        }
+    }
+}
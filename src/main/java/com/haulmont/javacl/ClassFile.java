@@ -0,0 +1,314 @@
+package com.haulmont.javacl;
+
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Minimal class file reader, extracts information the loader needs from compiled byte code
+ */
+class ClassFile {
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_SYNTHETIC = 0x1000;
+    // flags which do not change how other classes are compiled against a class or a member
+    private static final int CLASS_IGNORED_FLAGS = 0x0020 | 0x1000; // super, synthetic
+    private static final int FIELD_IGNORED_FLAGS = 0x0040 | 0x0080; // volatile, transient
+    private static final int METHOD_IGNORED_FLAGS = 0x0020 | 0x0100 | 0x0800; // synchronized, native, strict
+
+    private final Set<String> referencedClasses = new HashSet<>();
+
+    private String[] utf8;
+    private int[] classNameIndexes;
+    private Object[] values;
+    private String abi;
+    private String sourceFile;
+    private boolean constants;
+    private boolean packageAccess;
+
+    private ClassFile() {
+    }
+
+    static ClassFile parse(byte[] byteCode) throws IOException {
+        ClassFile classFile = new ClassFile();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(byteCode));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        classFile.readConstantPool(in);
+        classFile.readDeclarations(in);
+        return classFile;
+    }
+
+    /**
+     * @return binary names of the classes referenced from the constant pool, including types
+     *         mentioned in descriptors and generic signatures. Compile time constants are inlined by javac,
+     *         so classes referenced only by such constants are not included.
+     */
+    Set<String> getReferencedClasses() {
+        return referencedClasses;
+    }
+
+    /**
+     * @return description of what other classes are compiled against: flags and supertypes of the class,
+     *         its non-private fields and methods with generic signatures and thrown exceptions,
+     *         and values of its constants. Classes of the same package use package-private members
+     *         and classes as well. Order of the members does not matter.
+     */
+    String getAbi() {
+        return abi;
+    }
+
+    /**
+     * @return true if some non-private field has a constant value, which javac inlines into the classes using it
+     */
+    boolean hasConstants() {
+        return constants;
+    }
+
+    /**
+     * @return true if the class or some of its members are accessible from the same package only.
+     *         Other classes of the package can use them only when defined by the same class loader.
+     */
+    boolean hasPackageAccess() {
+        return packageAccess;
+    }
+
+    /**
+     * @return name of the source file without the directory, null if the class has been compiled without it
+     */
+    String getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * @return digest of the ABI
+     */
+    static String digest(String abi) {
+        return Hashing.sha1().hashUnencodedChars(abi).toString();
+    }
+
+    private void readConstantPool(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        utf8 = new String[count];
+        classNameIndexes = new int[count];
+        values = new Object[count];
+        int[] stringIndexes = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    utf8[i] = in.readUTF();
+                    if (isDescriptor(utf8[i])) {
+                        addDescriptorClasses(utf8[i]);
+                    }
+                    break;
+                case CONSTANT_CLASS:
+                    classNameIndexes[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_STRING:
+                    stringIndexes[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_INTEGER:
+                    values[i] = in.readInt();
+                    break;
+                case CONSTANT_FLOAT:
+                    values[i] = in.readFloat();
+                    break;
+                case CONSTANT_LONG:
+                    values[i] = in.readLong();
+                    i++;
+                    break;
+                case CONSTANT_DOUBLE:
+                    values[i] = in.readDouble();
+                    i++;
+                    break;
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    in.readUnsignedShort();
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    in.readInt();
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        for (int i = 1; i < count; i++) {
+            if (stringIndexes[i] != 0) {
+                values[i] = '"' + getUtf8(stringIndexes[i]) + '"';
+            }
+            if (classNameIndexes[i] == 0) {
+                continue;
+            }
+            String name = utf8[classNameIndexes[i]];
+            if (name == null) {
+                throw new IOException("Invalid class constant");
+            }
+            if (name.charAt(0) == '[') {
+                addDescriptorClasses(name);
+            } else {
+                referencedClasses.add(name.replace('/', '.'));
+            }
+        }
+    }
+
+    private void readDeclarations(DataInputStream in) throws IOException {
+        int accessFlags = in.readUnsignedShort();
+        packageAccess = (accessFlags & ACC_PUBLIC) == 0;
+        StringBuilder classAbi = new StringBuilder()
+                .append(accessFlags & ~CLASS_IGNORED_FLAGS)
+                .append(' ').append(getClassName(in.readUnsignedShort())); // this class
+        classAbi.append(" extends ").append(getClassName(in.readUnsignedShort()));
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            classAbi.append(" implements ").append(getClassName(in.readUnsignedShort()));
+        }
+
+        List<String> members = new ArrayList<>();
+        readMembers(in, FIELD_IGNORED_FLAGS, members);
+        readMembers(in, METHOD_IGNORED_FLAGS, members);
+        readAttributes(in, classAbi);
+
+        Collections.sort(members);
+        for (String member : members) {
+            classAbi.append('\n').append(member);
+        }
+        abi = classAbi.toString();
+    }
+
+    /**
+     * Adds non-private fields or methods to the members
+     */
+    private void readMembers(DataInputStream in, int ignoredFlags, List<String> members) throws IOException {
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            int accessFlags = in.readUnsignedShort();
+            StringBuilder member = new StringBuilder()
+                    .append(accessFlags & ~ignoredFlags)
+                    .append(' ').append(getUtf8(in.readUnsignedShort())) // name
+                    .append(' ').append(getUtf8(in.readUnsignedShort())); // descriptor
+            boolean hadConstants = constants;
+            readAttributes(in, member);
+            if ((accessFlags & ACC_PRIVATE) != 0) {
+                // private constants are not inlined into other classes
+                constants = hadConstants;
+            }
+            if ((accessFlags & ACC_PRIVATE) == 0) {
+                members.add(member.toString());
+            }
+            if ((accessFlags & (ACC_PUBLIC | ACC_PRIVATE | ACC_SYNTHETIC)) == 0) {
+                packageAccess = true;
+            }
+        }
+    }
+
+    /**
+     * Adds generic signature, constant value and thrown exceptions, remembers the source file of the class
+     * and whether it has constants, other attributes are skipped
+     */
+    private void readAttributes(DataInputStream in, StringBuilder abi) throws IOException {
+        for (int i = in.readUnsignedShort(); i > 0; i--) {
+            String name = getUtf8(in.readUnsignedShort());
+            int length = in.readInt();
+            if ("Signature".equals(name)) {
+                abi.append(" signature ").append(getUtf8(in.readUnsignedShort()));
+            } else if ("ConstantValue".equals(name)) {
+                constants = true;
+                abi.append(" = ").append(getConstantValue(in.readUnsignedShort()));
+            } else if ("SourceFile".equals(name)) {
+                sourceFile = getUtf8(in.readUnsignedShort());
+            } else if ("Exceptions".equals(name)) {
+                for (int j = in.readUnsignedShort(); j > 0; j--) {
+                    abi.append(" throws ").append(getClassName(in.readUnsignedShort()));
+                }
+            } else {
+                in.skipBytes(length);
+            }
+        }
+    }
+
+    private String getUtf8(int index) throws IOException {
+        if (index <= 0 || index >= utf8.length || utf8[index] == null) {
+            throw new IOException("Invalid UTF8 constant " + index);
+        }
+        return utf8[index];
+    }
+
+    /**
+     * @return internal name of the class, empty for index 0 which is the superclass of java.lang.Object
+     */
+    private String getClassName(int index) throws IOException {
+        if (index == 0) {
+            return "";
+        }
+        if (index >= classNameIndexes.length || classNameIndexes[index] == 0) {
+            throw new IOException("Invalid class constant " + index);
+        }
+        return getUtf8(classNameIndexes[index]);
+    }
+
+    private String getConstantValue(int index) throws IOException {
+        if (index <= 0 || index >= values.length || values[index] == null) {
+            throw new IOException("Invalid constant value " + index);
+        }
+        return values[index].toString();
+    }
+
+    private static boolean isDescriptor(String value) {
+        return value.length() > 2 && (value.charAt(0) == '(' || value.charAt(0) == 'L'
+                || value.charAt(0) == '[' || value.charAt(0) == '<') && value.indexOf(';') > 0;
+    }
+
+    private void addDescriptorClasses(String descriptor) {
+        int start = descriptor.indexOf('L');
+        while (start >= 0) {
+            int end = start + 1;
+            while (end < descriptor.length() && descriptor.charAt(end) != ';' && descriptor.charAt(end) != '<') {
+                end++;
+            }
+            if (end > start + 1 && end < descriptor.length()) {
+                referencedClasses.add(descriptor.substring(start + 1, end).replace('/', '.'));
+            }
+            start = descriptor.indexOf('L', end);
+        }
+    }
+}
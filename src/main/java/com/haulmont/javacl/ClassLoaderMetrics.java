@@ -0,0 +1,251 @@
+package com.haulmont.javacl;
+
+import com.haulmont.javacl.compiler.CharSequenceCompiler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters and histograms of {@link JavaClassLoader}. Recording is cheap enough to be always on,
+ * events are forwarded to the metrics registry if one is set.
+ */
+public class ClassLoaderMetrics implements ClassLoaderMetricsMBean {
+    private final JavaClassLoader javaClassLoader;
+
+    private final StripedCounter loadClassCount = new StripedCounter();
+    private final StripedCounter cacheHitCount = new StripedCounter();
+    private final StripedCounter parentDelegationCount = new StripedCounter();
+    private final StripedCounter compilationCount = new StripedCounter();
+    private final StripedCounter compilationFailureCount = new StripedCounter();
+    private final StripedCounter bytecodeCacheHitCount = new StripedCounter();
+    private final StripedCounter staleHitCount = new StripedCounter();
+    private final StripedCounter javacRunCount = new StripedCounter();
+
+    private final Histogram verificationTime = new Histogram();
+    private final Histogram compileTime = new Histogram();
+    private final Histogram recompileSetSize = new Histogram();
+    private final Histogram contextUpdateTime = new Histogram();
+
+    private volatile MetricsRegistry registry;
+
+    ClassLoaderMetrics(JavaClassLoader javaClassLoader) {
+        this.javaClassLoader = javaClassLoader;
+    }
+
+    void setRegistry(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    void loadClass() {
+        increment(loadClassCount, MetricsRegistry.LOAD_CLASS);
+    }
+
+    void cacheHit() {
+        increment(cacheHitCount, MetricsRegistry.CACHE_HIT);
+    }
+
+    void parentDelegation() {
+        increment(parentDelegationCount, MetricsRegistry.PARENT_DELEGATION);
+    }
+
+    /**
+     * Sources of a class have been checked and the class has been taken from the cache
+     */
+    void verified(long nanos) {
+        increment(cacheHitCount, MetricsRegistry.CACHE_HIT);
+        record(verificationTime, MetricsRegistry.VERIFICATION_TIME, nanos);
+    }
+
+    void compiled(int sourceCount, long nanos) {
+        increment(compilationCount, MetricsRegistry.COMPILATION);
+        record(recompileSetSize, MetricsRegistry.RECOMPILE_SET_SIZE, sourceCount);
+        record(compileTime, MetricsRegistry.COMPILE_TIME, nanos);
+    }
+
+    void compilationFailed() {
+        increment(compilationFailureCount, MetricsRegistry.COMPILATION_FAILURE);
+    }
+
+    void bytecodeCacheHit() {
+        increment(bytecodeCacheHitCount, MetricsRegistry.BYTECODE_CACHE_HIT);
+    }
+
+    void staleHit() {
+        increment(staleHitCount, MetricsRegistry.STALE_HIT);
+    }
+
+    void javacRun() {
+        increment(javacRunCount, MetricsRegistry.JAVAC_RUN);
+    }
+
+    void contextUpdated(long nanos) {
+        record(contextUpdateTime, MetricsRegistry.CONTEXT_UPDATE_TIME, nanos);
+    }
+
+    private void increment(StripedCounter counter, String name) {
+        counter.increment();
+        MetricsRegistry currentRegistry = registry;
+        if (currentRegistry != null) {
+            currentRegistry.increment(name);
+        }
+    }
+
+    private void record(Histogram histogram, String name, long value) {
+        histogram.record(value);
+        MetricsRegistry currentRegistry = registry;
+        if (currentRegistry != null) {
+            currentRegistry.record(name, value);
+        }
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getLoadClassCount() {
+        return loadClassCount.get();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    @Override
+    public long getParentDelegationCount() {
+        return parentDelegationCount.get();
+    }
+
+    @Override
+    public long getCompilationCount() {
+        return compilationCount.get();
+    }
+
+    @Override
+    public long getCompilationFailureCount() {
+        return compilationFailureCount.get();
+    }
+
+    @Override
+    public long getBytecodeCacheHitCount() {
+        return bytecodeCacheHitCount.get();
+    }
+
+    @Override
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    @Override
+    public long getJavacRunCount() {
+        return javacRunCount.get();
+    }
+
+    @Override
+    public double getVerificationTimeP50() {
+        return toMillis(verificationTime.getPercentile(50));
+    }
+
+    @Override
+    public double getVerificationTimeP99() {
+        return toMillis(verificationTime.getPercentile(99));
+    }
+
+    @Override
+    public double getCompileTimeMean() {
+        return toMillis(compileTime.getMean());
+    }
+
+    @Override
+    public double getCompileTimeP50() {
+        return toMillis(compileTime.getPercentile(50));
+    }
+
+    @Override
+    public double getCompileTimeP95() {
+        return toMillis(compileTime.getPercentile(95));
+    }
+
+    @Override
+    public double getCompileTimeP99() {
+        return toMillis(compileTime.getPercentile(99));
+    }
+
+    @Override
+    public double getCompileTimeMax() {
+        return toMillis(compileTime.getMax());
+    }
+
+    @Override
+    public double getRecompileSetSizeMean() {
+        return recompileSetSize.getMean();
+    }
+
+    @Override
+    public long getRecompileSetSizeP95() {
+        return recompileSetSize.getPercentile(95);
+    }
+
+    @Override
+    public long getRecompileSetSizeMax() {
+        return recompileSetSize.getMax();
+    }
+
+    @Override
+    public double getContextUpdateTimeMean() {
+        return toMillis(contextUpdateTime.getMean());
+    }
+
+    @Override
+    public double getContextUpdateTimeP95() {
+        return toMillis(contextUpdateTime.getPercentile(95));
+    }
+
+    @Override
+    public double getContextUpdateTimeMax() {
+        return toMillis(contextUpdateTime.getMax());
+    }
+
+    @Override
+    public int getCompiledCacheSize() {
+        return javaClassLoader.snapshot.get().size();
+    }
+
+    @Override
+    public int getLiveGenerations() {
+        return javaClassLoader.generationTracker.size();
+    }
+
+    @Override
+    public long getUnloadedGenerationCount() {
+        return javaClassLoader.generationTracker.getUnloadedCount();
+    }
+
+    @Override
+    public long getRetainedByteCodeSize() {
+        long size = 0;
+        for (GenerationTracker.Generation generation : javaClassLoader.generationTracker.getLiveGenerations()) {
+            ClassLoader classLoader = generation.get();
+            if (classLoader != null) {
+                size += CharSequenceCompiler.getRetainedSize(classLoader);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long getRetainedBytesPerClass() {
+        int compiledCacheSize = getCompiledCacheSize();
+        return compiledCacheSize > 0 ? getRetainedByteCodeSize() / compiledCacheSize : 0;
+    }
+
+    @Override
+    public long getLockAcquisitionCount() {
+        return javaClassLoader.getLockAcquisitionCount();
+    }
+
+    @Override
+    public long getLockContentionCount() {
+        return javaClassLoader.getLockContentionCount();
+    }
+}
@@ -0,0 +1,95 @@
+package com.haulmont.javacl;
+
+/**
+ * Metrics of {@link JavaClassLoader}, times are in milliseconds
+ */
+public interface ClassLoaderMetricsMBean {
+    long getLoadClassCount();
+
+    /**
+     * @return loadClass calls for dynamic classes answered from the compiled classes without compilation
+     */
+    long getCacheHitCount();
+
+    /**
+     * @return loadClass calls for classes without sources, delegated to the parent class loader
+     */
+    long getParentDelegationCount();
+
+    /**
+     * @return reloads which compiled or defined classes
+     */
+    long getCompilationCount();
+
+    long getCompilationFailureCount();
+
+    /**
+     * @return reloads whose classes were defined from the persistent byte code cache
+     */
+    long getBytecodeCacheHitCount();
+
+    /**
+     * @return loads answered with the previous version of a class while it was recompiled in background
+     */
+    long getStaleHitCount();
+
+    /**
+     * @return javac tasks, a reload may run several of them in parallel
+     */
+    long getJavacRunCount();
+
+    double getVerificationTimeP50();
+
+    double getVerificationTimeP99();
+
+    double getCompileTimeMean();
+
+    double getCompileTimeP50();
+
+    double getCompileTimeP95();
+
+    double getCompileTimeP99();
+
+    double getCompileTimeMax();
+
+    double getRecompileSetSizeMean();
+
+    long getRecompileSetSizeP95();
+
+    long getRecompileSetSizeMax();
+
+    double getContextUpdateTimeMean();
+
+    double getContextUpdateTimeP95();
+
+    double getContextUpdateTimeMax();
+
+    /**
+     * @return number of compiled dynamic classes, including nested classes
+     */
+    int getCompiledCacheSize();
+
+    /**
+     * @return class loaders of compilations which have not been garbage collected yet
+     */
+    int getLiveGenerations();
+
+    /**
+     * @return class loaders of compilations which have been garbage collected, together with their classes
+     */
+    long getUnloadedGenerationCount();
+
+    /**
+     * @return bytes of byte code and source text retained by all live generations
+     */
+    long getRetainedByteCodeSize();
+
+    /**
+     * @return retained bytes divided by the number of compiled dynamic classes
+     */
+    long getRetainedBytesPerClass();
+
+    long getLockAcquisitionCount();
+
+    long getLockContentionCount();
+}
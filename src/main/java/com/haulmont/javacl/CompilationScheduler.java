@@ -0,0 +1,280 @@
+package com.haulmont.javacl;
+
+import com.google.common.collect.Multimap;
+import com.haulmont.javacl.compiler.CharSequenceCompiler;
+import com.haulmont.javacl.compiler.CharSequenceCompilerException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a set of sources into strongly connected components of the dependency graph and compiles them
+ * in topological waves. Components of one wave do not depend on each other and are compiled concurrently,
+ * each by its own compiler.
+ * <p/>
+ * Byte code of the earlier waves is passed to the compilers of the later waves as classpath entries,
+ * the classes themselves should be added to the draft of the compilation by the wave listener.
+ */
+class CompilationScheduler {
+    private static Log log = LogFactory.getLog(CompilationScheduler.class);
+
+    private final JavaClassLoader javaClassLoader;
+    private final GenerationDraft draft;
+    private final ExecutorService executor;
+
+    private final List<CharSequenceCompiler> compilers = new ArrayList<>();
+
+    /**
+     * @param draft    draft of the compilation, the compilers see the classes through it
+     * @param executor executor for concurrent components, null to compile them one by one in the calling thread
+     */
+    CompilationScheduler(JavaClassLoader javaClassLoader, GenerationDraft draft, ExecutorService executor) {
+        this.javaClassLoader = javaClassLoader;
+        this.draft = draft;
+        this.executor = executor;
+    }
+
+    /**
+     * Defines classes from previously compiled byte code with one compiler
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Class> defineClasses(Map<String, byte[]> byteCode) throws CharSequenceCompilerException {
+        return createCompiler().defineClasses(byteCode);
+    }
+
+    /**
+     * @param dependencies dependencies between the sources, other dependencies are ignored
+     * @param listener     notified of the classes of each wave before the next wave is compiled
+     */
+    Map<String, Class> compile(Map<String, CharSequence> sources, Multimap<String, String> dependencies,
+                               WaveListener listener) throws CharSequenceCompilerException, InterruptedException {
+        return compile(sources, dependencies, listener, Collections.<String, byte[]>emptyMap());
+    }
+
+    /**
+     * @param classPathByteCode classes compiled or defined earlier by this scheduler which the sources use
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Class> compile(Map<String, CharSequence> sources, Multimap<String, String> dependencies,
+                               WaveListener listener, Map<String, byte[]> classPathByteCode)
+            throws CharSequenceCompilerException, InterruptedException {
+        List<List<Map<String, CharSequence>>> waves = schedule(sources, dependencies);
+        if (log.isDebugEnabled()) {
+            log.debug("Compiling " + sources.size() + " sources in " + waves.size() + " waves");
+        }
+
+        Map<String, Class> compiledClasses = new HashMap<>();
+        Map<String, byte[]> compiledByteCode = new HashMap<>(classPathByteCode);
+        for (int i = 0; i < waves.size(); i++) {
+            List<Map<String, CharSequence>> wave = waves.get(i);
+            List<CharSequenceCompiler> waveCompilers = new ArrayList<>();
+            for (int j = 0; j < wave.size(); j++) {
+                CharSequenceCompiler compiler = createCompiler();
+                compiler.addClassPathClasses(compiledByteCode);
+                waveCompilers.add(compiler);
+            }
+
+            Map<String, Class> waveClasses = compileWave(wave, waveCompilers);
+            compiledClasses.putAll(waveClasses);
+            if (i < waves.size() - 1) {
+                for (CharSequenceCompiler compiler : waveCompilers) {
+                    compiledByteCode.putAll(compiler.getByteCode());
+                }
+                listener.compiled(waveClasses);
+            }
+        }
+        return compiledClasses;
+    }
+
+    /**
+     * @return byte code of all the classes compiled or defined by this scheduler
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, byte[]> getByteCode() {
+        Map<String, byte[]> byteCode = new HashMap<>();
+        for (CharSequenceCompiler compiler : compilers) {
+            byteCode.putAll(compiler.getByteCode());
+        }
+        return byteCode;
+    }
+
+    /**
+     * @return true if the class has been defined by one of the compilers of this scheduler,
+     *         not taken from the cache of the loader
+     */
+    boolean isDefinedByScheduler(Class clazz) {
+        for (CharSequenceCompiler compiler : compilers) {
+            if (clazz.getClassLoader() == compiler.getClassLoader()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops byte code of all the compilers, defined classes stay loadable
+     */
+    void releaseByteCode(boolean keepCompressed) {
+        for (CharSequenceCompiler compiler : compilers) {
+            compiler.releaseByteCode(keepCompressed);
+        }
+    }
+
+    /**
+     * Returns the file managers of all the compilers to the pool
+     */
+    void release() {
+        for (CharSequenceCompiler compiler : compilers) {
+            compiler.release();
+        }
+    }
+
+    private CharSequenceCompiler createCompiler() {
+        CharSequenceCompiler compiler = javaClassLoader.createCompiler(draft);
+        compilers.add(compiler);
+        javaClassLoader.generationTracker.register(compiler.getClassLoader());
+        return compiler;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Class> compileWave(List<Map<String, CharSequence>> wave, List<CharSequenceCompiler> waveCompilers)
+            throws CharSequenceCompilerException, InterruptedException {
+        Map<String, Class> waveClasses = new HashMap<>();
+        if (executor == null || wave.size() == 1) {
+            for (int i = 0; i < wave.size(); i++) {
+                javaClassLoader.metrics.javacRun();
+                waveClasses.putAll(waveCompilers.get(i).compile(wave.get(i), new DiagnosticCollector<JavaFileObject>()));
+            }
+            return waveClasses;
+        }
+
+        List<Future<Map<String, Class>>> futures = new ArrayList<>();
+        for (int i = 0; i < wave.size(); i++) {
+            final Map<String, CharSequence> component = wave.get(i);
+            final CharSequenceCompiler compiler = waveCompilers.get(i);
+            futures.add(executor.submit(new Callable<Map<String, Class>>() {
+                @Override
+                public Map<String, Class> call() throws Exception {
+                    javaClassLoader.metrics.javacRun();
+                    return compiler.compile(component, new DiagnosticCollector<JavaFileObject>());
+                }
+            }));
+        }
+        try {
+            for (Future<Map<String, Class>> future : futures) {
+                waveClasses.putAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CharSequenceCompilerException) {
+                throw (CharSequenceCompilerException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<Map<String, Class>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return waveClasses;
+    }
+
+    /**
+     * Finds strongly connected components with Tarjan's algorithm and groups them by the length
+     * of the longest dependency chain, so every component goes after all of its dependencies
+     */
+    private List<List<Map<String, CharSequence>>> schedule(Map<String, CharSequence> sources,
+                                                           Multimap<String, String> dependencies) {
+        Tarjan tarjan = new Tarjan(sources.keySet(), dependencies);
+        List<List<Map<String, CharSequence>>> waves = new ArrayList<>();
+        Map<String, Integer> waveIndexes = new HashMap<>();
+        // components are found in reverse topological order, dependencies first
+        for (List<String> component : tarjan.components) {
+            int waveIndex = 0;
+            for (String className : component) {
+                for (String dependencyName : dependencies.get(className)) {
+                    Integer dependencyWave = waveIndexes.get(dependencyName);
+                    // members of the component itself are not assigned yet
+                    if (dependencyWave != null) {
+                        waveIndex = Math.max(waveIndex, dependencyWave + 1);
+                    }
+                }
+            }
+
+            Map<String, CharSequence> componentSources = new HashMap<>();
+            for (String className : component) {
+                waveIndexes.put(className, waveIndex);
+                componentSources.put(className, sources.get(className));
+            }
+            while (waves.size() <= waveIndex) {
+                waves.add(new ArrayList<Map<String, CharSequence>>());
+            }
+            waves.get(waveIndex).add(componentSources);
+        }
+        return waves;
+    }
+
+    interface WaveListener {
+        /**
+         * Called with the classes of each wave except the last one
+         */
+        void compiled(Map<String, Class> classes);
+    }
+
+    private static class Tarjan {
+        final List<List<String>> components = new ArrayList<>();
+
+        private final Set<String> nodes;
+        private final Multimap<String, String> edges;
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final Map<String, Integer> lowLinks = new HashMap<>();
+        private final Deque<String> stack = new ArrayDeque<>();
+        private final Set<String> onStack = new HashSet<>();
+
+        Tarjan(Set<String> nodes, Multimap<String, String> edges) {
+            this.nodes = nodes;
+            this.edges = edges;
+            for (String node : nodes) {
+                if (!indexes.containsKey(node)) {
+                    visit(node);
+                }
+            }
+        }
+
+        private void visit(String node) {
+            int index = indexes.size();
+            indexes.put(node, index);
+            lowLinks.put(node, index);
+            stack.push(node);
+            onStack.add(node);
+
+            for (String next : edges.get(node)) {
+                if (!nodes.contains(next)) {
+                    continue;
+                }
+                if (!indexes.containsKey(next)) {
+                    visit(next);
+                    lowLinks.put(node, Math.min(lowLinks.get(node), lowLinks.get(next)));
+                } else if (onStack.contains(next)) {
+                    lowLinks.put(node, Math.min(lowLinks.get(node), indexes.get(next)));
+                }
+            }
+
+            if (lowLinks.get(node) == index) {
+                List<String> component = new ArrayList<>();
+                String member;
+                do {
+                    member = stack.pop();
+                    onStack.remove(member);
+                    component.add(member);
+                } while (!member.equals(node));
+                components.add(component);
+            }
+        }
+    }
+}
@@ -35,17 +35,25 @@ class CompilationScope {
 
         TimestampClass timeStampClazz = javaClassLoader.getTimestampClass(rootClassName);
         if (timeStampClazz != null) {
-            if (FileUtils.isFileNewer(srcFile, timeStampClazz.timestamp)) {
-                compilationNeeded.add(rootClassName);
-            } else if (!srcFile.exists()) {
+            if (!srcFile.exists()) {
                 throw new ClassNotFoundException("Class " + rootClassName + " not found. No sources found in file system.");
+            } else if (isModified(sourceProvider, srcFile, rootClassName, timeStampClazz)) {
+                compilationNeeded.add(rootClassName);
             }
 
-            for (String dependencyName : timeStampClazz.dependencies) {
+            for (String dependencyName : javaClassLoader.dependencyGraph.getDependencies(rootClassName)) {
                 collectInformation(dependencyName);
             }
         } else {
             compilationNeeded.add(rootClassName);
         }
     }
+
+    static boolean isModified(SourceProvider sourceProvider, File srcFile, String className,
+                              TimestampClass timeStampClazz) {
+        if (timeStampClazz.fingerprint != null) {
+            return !timeStampClazz.fingerprint.matches(srcFile, sourceProvider, className);
+        }
+        return FileUtils.isFileNewer(srcFile, timeStampClazz.timestamp);
+    }
 }
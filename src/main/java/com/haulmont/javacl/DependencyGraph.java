@@ -0,0 +1,156 @@
+package com.haulmont.javacl;
+
+import java.util.*;
+
+/**
+ * Dependencies between dynamic classes. Class names are interned to int ids once,
+ * edges are kept in sorted int arrays in both directions.
+ * <p/>
+ * Adjacency arrays are never modified in place, a changed array is replaced with a new one.
+ */
+class DependencyGraph {
+    private static final int[] EMPTY = new int[0];
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[][] dependencies = new int[INITIAL_CAPACITY][];
+    private int[][] dependents = new int[INITIAL_CAPACITY][];
+    private int size;
+
+    /**
+     * Replaces dependencies of the class, dependent links of the old and new dependencies are updated
+     */
+    synchronized void setDependencies(String className, Collection<String> dependencyNames) {
+        int id = intern(className);
+
+        for (int dependencyId : dependencies[id]) {
+            dependents[dependencyId] = remove(dependents[dependencyId], id);
+        }
+
+        int[] newDependencies = EMPTY;
+        for (String dependencyName : dependencyNames) {
+            int dependencyId = intern(dependencyName);
+            if (dependencyId != id) {
+                newDependencies = add(newDependencies, dependencyId);
+            }
+        }
+        dependencies[id] = newDependencies;
+
+        for (int dependencyId : newDependencies) {
+            dependents[dependencyId] = add(dependents[dependencyId], id);
+        }
+    }
+
+    synchronized List<String> getDependencies(String className) {
+        Integer id = ids.get(className);
+        return id != null ? toNames(dependencies[id]) : Collections.<String>emptyList();
+    }
+
+    synchronized List<String> getDependents(String className) {
+        Integer id = ids.get(className);
+        return id != null ? toNames(dependents[id]) : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return all classes which directly or indirectly depend on the class, not including the class itself
+     */
+    synchronized Set<String> getTransitiveDependents(String className) {
+        Integer id = ids.get(className);
+        if (id == null) {
+            return Collections.emptySet();
+        }
+
+        BitSet visited = new BitSet(size);
+        visited.set(id);
+        int[] stack = new int[size];
+        int top = 0;
+        stack[top++] = id;
+        Set<String> result = new LinkedHashSet<>();
+        while (top > 0) {
+            for (int dependentId : dependents[stack[--top]]) {
+                if (!visited.get(dependentId)) {
+                    visited.set(dependentId);
+                    stack[top++] = dependentId;
+                    result.add(names[dependentId]);
+                }
+            }
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return approximate retained size of the graph in bytes, class name strings are not included
+     *         as they are shared with the rest of the loader
+     */
+    synchronized long getMemoryFootprint() {
+        final int arrayHeader = 16;
+        final int reference = 8;
+        final int mapEntry = 48;
+        long footprint = 3L * (arrayHeader + (long) names.length * reference);
+        footprint += (long) ids.size() * (mapEntry + arrayHeader);
+        for (int i = 0; i < size; i++) {
+            footprint += arrayHeader + 4L * dependencies[i].length;
+            footprint += arrayHeader + 4L * dependents[i].length;
+        }
+        return footprint;
+    }
+
+    private int intern(String className) {
+        Integer id = ids.get(className);
+        if (id != null) {
+            return id;
+        }
+
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            dependencies = Arrays.copyOf(dependencies, capacity);
+            dependents = Arrays.copyOf(dependents, capacity);
+        }
+        names[size] = className;
+        dependencies[size] = EMPTY;
+        dependents[size] = EMPTY;
+        ids.put(className, size);
+        return size++;
+    }
+
+    private List<String> toNames(int[] nodeIds) {
+        List<String> result = new ArrayList<>(nodeIds.length);
+        for (int nodeId : nodeIds) {
+            result.add(names[nodeId]);
+        }
+        return result;
+    }
+
+    private static int[] add(int[] array, int value) {
+        int index = Arrays.binarySearch(array, value);
+        if (index >= 0) {
+            return array;
+        }
+        index = -index - 1;
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static int[] remove(int[] array, int value) {
+        int index = Arrays.binarySearch(array, value);
+        if (index < 0) {
+            return array;
+        }
+        if (array.length == 1) {
+            return EMPTY;
+        }
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the files under the root directory. The index is built lazily and dropped
+ * on every change reported by the change tracker, so lookups do not touch the file system.
+ * The index is used only while the tracker is running.
+ */
+class FileIndex implements SourceChangeTracker.ChangeListener {
+    private static Log log = LogFactory.getLog(FileIndex.class);
+
+    private final Path rootPath;
+    private final SourceChangeTracker changeTracker;
+
+    private volatile Snapshot snapshot;
+    private volatile long modCount;
+
+    FileIndex(Path rootPath, SourceChangeTracker changeTracker) {
+        this.rootPath = rootPath;
+        this.changeTracker = changeTracker;
+        changeTracker.addListener(this);
+    }
+
+    boolean isActive() {
+        return changeTracker.isReady();
+    }
+
+    /**
+     * @param relativePath path relative to the root directory, separated by '/'
+     */
+    boolean containsFile(String relativePath) {
+        return getSnapshot().files.contains(relativePath);
+    }
+
+    boolean containsDirectory(String relativePath) {
+        return getSnapshot().directories.containsKey(relativePath);
+    }
+
+    /**
+     * @return names of the files directly in the directory, or empty list if there is no such directory
+     */
+    List<String> listFiles(String relativePath) {
+        List<String> fileNames = getSnapshot().directories.get(relativePath);
+        return fileNames != null ? fileNames : Collections.<String>emptyList();
+    }
+
+    /**
+     * @param relativePath path relative to the root directory, separated by '/'
+     * @return URL of the file or directory, null if there is no such entry. URLs are cached until the next change.
+     */
+    URL getUrl(String relativePath) {
+        Snapshot current = getSnapshot();
+        String path = relativePath.endsWith("/") ? relativePath.substring(0, relativePath.length() - 1) : relativePath;
+        if (!current.files.contains(path) && !current.directories.containsKey(path)) {
+            return null;
+        }
+        URL url = current.urls.get(path);
+        if (url == null) {
+            try {
+                url = rootPath.resolve(path).toUri().toURL();
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+            current.urls.put(path, url);
+        }
+        return url;
+    }
+
+    @Override
+    public void changed(Collection<Path> paths) {
+        modCount++;
+        snapshot = null;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    long expectedModCount = modCount;
+                    current = build();
+                    if (expectedModCount == modCount) {
+                        snapshot = current;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    private Snapshot build() {
+        final Snapshot result = new Snapshot();
+        if (!Files.isDirectory(rootPath)) {
+            return result;
+        }
+        try {
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    result.directories.put(toRelativePath(dir), new ArrayList<String>());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    result.files.add(toRelativePath(file));
+                    List<String> fileNames = result.directories.get(toRelativePath(file.getParent()));
+                    if (fileNames != null) {
+                        fileNames.add(file.getFileName().toString());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Unable to index " + rootPath, e);
+        }
+        return result;
+    }
+
+    private String toRelativePath(Path path) {
+        StringBuilder builder = new StringBuilder();
+        for (Path name : rootPath.relativize(path)) {
+            if (builder.length() > 0) {
+                builder.append('/');
+            }
+            builder.append(name.toString());
+        }
+        return builder.toString();
+    }
+
+    private static class Snapshot {
+        final Set<String> files = new HashSet<>();
+        final Map<String, List<String>> directories = new HashMap<>();
+        final Map<String, URL> urls = new ConcurrentHashMap<>();
+    }
+}
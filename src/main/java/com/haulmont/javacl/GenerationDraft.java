@@ -0,0 +1,101 @@
+package com.haulmont.javacl;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Private changes of one compilation on top of the published snapshot: classes taken out for recompilation
+ * and classes compiled so far. Other threads keep seeing the published snapshot until the draft is published,
+ * so a failed compilation just drops its draft.
+ */
+final class GenerationDraft {
+    private final AtomicReference<GenerationSnapshot> snapshot;
+    private final Map<String, TimestampClass> removed = new ConcurrentHashMap<>();
+    private final Map<String, TimestampClass> added = new ConcurrentHashMap<>();
+    private final Thread owner = Thread.currentThread();
+
+    private volatile boolean closed;
+
+    GenerationDraft(AtomicReference<GenerationSnapshot> snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the class as the compilation sees it: compiled by the draft, or published and not removed by it
+     */
+    TimestampClass get(String className) {
+        TimestampClass timestampClass = added.get(className);
+        if (timestampClass != null || removed.containsKey(className)) {
+            return timestampClass;
+        }
+        return snapshot.get().get(className);
+    }
+
+    /**
+     * Hides the class from the compilation, it stays published until the draft is published
+     *
+     * @return the published version, null if there is none or it has been removed by the draft already
+     */
+    TimestampClass remove(String className) {
+        if (removed.containsKey(className)) {
+            return null;
+        }
+        TimestampClass timestampClass = snapshot.get().get(className);
+        if (timestampClass != null) {
+            removed.put(className, timestampClass);
+        }
+        return timestampClass;
+    }
+
+    void add(Map<String, TimestampClass> classes) {
+        added.putAll(classes);
+    }
+
+    /**
+     * @return published versions of the classes removed by the draft
+     */
+    Map<String, TimestampClass> getRemoved() {
+        return Collections.unmodifiableMap(removed);
+    }
+
+    /**
+     * @return classes compiled by the draft so far
+     */
+    Map<String, TimestampClass> getAdded() {
+        return Collections.unmodifiableMap(added);
+    }
+
+    Thread getOwner() {
+        return owner;
+    }
+
+    /**
+     * Applies the draft to the latest snapshot with one atomic swap. Classes published meanwhile
+     * by concurrent compilations are kept unless the draft replaces them.
+     */
+    GenerationSnapshot publish() {
+        while (true) {
+            GenerationSnapshot current = snapshot.get();
+            GenerationSnapshot next = current.next(removed.keySet(), added);
+            if (snapshot.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Class loaders of the compilation look classes up in the published snapshot after that.
+     * They keep the draft, so it drops the classes it refers to and does not pin the replaced generation.
+     */
+    void close() {
+        closed = true;
+        removed.clear();
+        added.clear();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,63 @@
+package com.haulmont.javacl;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Diagnostic information about a class loader created by a compilation which has not been garbage collected
+ */
+public class GenerationInfo {
+    private final long id;
+    private final Date createdTime;
+    private final Date retiredTime;
+    private final List<String> classNames;
+    private final List<String> pins;
+
+    GenerationInfo(long id, Date createdTime, Date retiredTime, List<String> classNames, List<String> pins) {
+        this.id = id;
+        this.createdTime = createdTime;
+        this.retiredTime = retiredTime;
+        this.classNames = Collections.unmodifiableList(classNames);
+        this.pins = Collections.unmodifiableList(pins);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Date getCreatedTime() {
+        return createdTime;
+    }
+
+    /**
+     * @return time when all classes of the generation were replaced, null if some of them are still in use
+     */
+    public Date getRetiredTime() {
+        return retiredTime;
+    }
+
+    public boolean isRetired() {
+        return retiredTime != null;
+    }
+
+    /**
+     * @return classes compiled or defined by the generation
+     */
+    public List<String> getClassNames() {
+        return classNames;
+    }
+
+    /**
+     * @return known references which keep the generation alive. Empty for a retired generation means
+     *         it is only waiting for garbage collection or is referenced from elsewhere, a heap dump is needed then.
+     */
+    public List<String> getPins() {
+        return pins;
+    }
+
+    @Override
+    public String toString() {
+        return "Generation " + id + (retiredTime != null ? " (retired)" : "") + " " + classNames + " pinned by " + pins;
+    }
+}
@@ -0,0 +1,58 @@
+package com.haulmont.javacl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable version of the compiled classes cache. Readers look classes up in the current snapshot without locking,
+ * a compilation publishes its classes by replacing the snapshot with the next version.
+ */
+final class GenerationSnapshot {
+    static final GenerationSnapshot EMPTY = new GenerationSnapshot(0, Collections.<String, TimestampClass>emptyMap());
+
+    final long version;
+    private final Map<String, TimestampClass> classes;
+
+    private GenerationSnapshot(long version, Map<String, TimestampClass> classes) {
+        this.version = version;
+        this.classes = classes;
+    }
+
+    TimestampClass get(String className) {
+        return classes.get(className);
+    }
+
+    boolean contains(String className) {
+        return classes.containsKey(className);
+    }
+
+    int size() {
+        return classes.size();
+    }
+
+    /**
+     * @return compiled classes by name, the map is not modifiable
+     */
+    Map<String, TimestampClass> getClasses() {
+        return classes;
+    }
+
+    /**
+     * @return the next version with the given classes removed and then the added classes put over
+     */
+    GenerationSnapshot next(Collection<String> removedClassNames, Map<String, TimestampClass> addedClasses) {
+        Map<String, TimestampClass> nextClasses = new HashMap<>(classes);
+        nextClasses.keySet().removeAll(removedClassNames);
+        nextClasses.putAll(addedClasses);
+        return new GenerationSnapshot(version + 1, Collections.unmodifiableMap(nextClasses));
+    }
+
+    /**
+     * @return the next version without any classes
+     */
+    GenerationSnapshot cleared() {
+        return new GenerationSnapshot(version + 1, Collections.<String, TimestampClass>emptyMap());
+    }
+}
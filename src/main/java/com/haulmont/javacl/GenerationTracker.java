@@ -0,0 +1,95 @@
+package com.haulmont.javacl;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps weak references to the class loaders created by compilations. A generation disappears from the tracker
+ * when its class loader is garbage collected, so the tracker never pins the classes itself.
+ */
+class GenerationTracker {
+    private final AtomicLong lastId = new AtomicLong();
+    private final AtomicLong unloadedCount = new AtomicLong();
+    private final Map<Long, Generation> generations = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+
+    void register(ClassLoader classLoader) {
+        expunge();
+        Generation generation = new Generation(lastId.incrementAndGet(), classLoader, queue);
+        generations.put(generation.id, generation);
+    }
+
+    /**
+     * Marks generations whose classes have been replaced by a newer compilation
+     */
+    void retire(Collection<ClassLoader> classLoaders) {
+        long now = System.currentTimeMillis();
+        for (Generation generation : generations.values()) {
+            if (generation.retiredTime == 0 && classLoaders.contains(generation.get())) {
+                generation.retiredTime = now;
+            }
+        }
+    }
+
+    /**
+     * @return generations whose class loaders have not been collected yet, oldest first
+     */
+    List<Generation> getLiveGenerations() {
+        expunge();
+        List<Generation> result = new ArrayList<>();
+        for (Generation generation : generations.values()) {
+            if (generation.get() != null) {
+                result.add(generation);
+            }
+        }
+        Collections.sort(result, new Comparator<Generation>() {
+            @Override
+            public int compare(Generation generation1, Generation generation2) {
+                return Long.compare(generation1.id, generation2.id);
+            }
+        });
+        return result;
+    }
+
+    int size() {
+        expunge();
+        return generations.size();
+    }
+
+    /**
+     * @return number of generations whose class loaders have been garbage collected
+     */
+    long getUnloadedCount() {
+        expunge();
+        return unloadedCount.get();
+    }
+
+    private void expunge() {
+        Reference<? extends ClassLoader> reference;
+        while ((reference = queue.poll()) != null) {
+            if (generations.remove(((Generation) reference).id) != null) {
+                unloadedCount.incrementAndGet();
+            }
+        }
+    }
+
+    static class Generation extends WeakReference<ClassLoader> {
+        final long id;
+        final long createdTime = System.currentTimeMillis();
+        volatile long retiredTime;
+
+        Generation(long id, ClassLoader classLoader, ReferenceQueue<ClassLoader> queue) {
+            super(classLoader, queue);
+            this.id = id;
+        }
+    }
+}
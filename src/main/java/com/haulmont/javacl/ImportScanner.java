@@ -0,0 +1,198 @@
+package com.haulmont.javacl;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads import declarations from the header of a compilation unit in one pass.
+ * Scanning stops at the first type declaration, comments and literals are skipped,
+ * so the cost depends on the size of the header only.
+ */
+class ImportScanner {
+    private static final String PACKAGE = "package";
+    private static final String IMPORT = "import";
+    private static final String STATIC = "static";
+    private static final String INTERFACE = "interface";
+
+    private final Reader reader;
+    private int next = -2;
+
+    private ImportScanner(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return imported names, such as "a.b.C" or "a.b.*". For static imports the name of the class
+     *         the members are imported from is returned.
+     */
+    static List<String> scan(Reader reader) throws IOException {
+        return new ImportScanner(reader).scanHeader();
+    }
+
+    private List<String> scanHeader() throws IOException {
+        List<String> imports = new ArrayList<>();
+        while (true) {
+            skipWhitespaceAndComments();
+            int c = peek();
+            if (c == ';') {
+                read();
+            } else if (c == '@') {
+                read();
+                skipWhitespaceAndComments();
+                if (INTERFACE.equals(readQualifiedName())) {
+                    return imports;
+                }
+                skipWhitespaceAndComments();
+                if (peek() == '(') {
+                    skipParentheses();
+                }
+            } else if (c != -1 && Character.isJavaIdentifierStart(c)) {
+                String keyword = readIdentifier();
+                if (PACKAGE.equals(keyword)) {
+                    readDeclarationName();
+                } else if (IMPORT.equals(keyword)) {
+                    String name = readDeclarationName();
+                    if (STATIC.equals(name)) {
+                        name = readDeclarationName();
+                        int lastDot = name.lastIndexOf('.');
+                        name = lastDot > 0 ? name.substring(0, lastDot) : name;
+                    }
+                    if (!name.isEmpty()) {
+                        imports.add(name);
+                    }
+                } else {
+                    return imports;
+                }
+            } else {
+                return imports;
+            }
+        }
+    }
+
+    /**
+     * Reads a qualified name up to ';'. The "static" modifier of an import is returned separately.
+     */
+    private String readDeclarationName() throws IOException {
+        StringBuilder name = new StringBuilder();
+        while (true) {
+            skipWhitespaceAndComments();
+            int c = peek();
+            if (c == -1) {
+                return name.toString();
+            } else if (c == ';') {
+                read();
+                return name.toString();
+            } else if (c == '.' || c == '*') {
+                name.append((char) read());
+            } else if (Character.isJavaIdentifierStart(c)) {
+                String identifier = readIdentifier();
+                if (name.length() == 0 && STATIC.equals(identifier)) {
+                    return identifier;
+                }
+                name.append(identifier);
+            } else {
+                read();
+            }
+        }
+    }
+
+    private String readQualifiedName() throws IOException {
+        StringBuilder name = new StringBuilder();
+        while (true) {
+            int c = peek();
+            if (c == '.') {
+                name.append((char) read());
+            } else if (c != -1 && Character.isJavaIdentifierStart(c)) {
+                name.append(readIdentifier());
+            } else {
+                return name.toString();
+            }
+            skipWhitespaceAndComments();
+        }
+    }
+
+    private String readIdentifier() throws IOException {
+        StringBuilder identifier = new StringBuilder();
+        identifier.append((char) read());
+        while (peek() != -1 && Character.isJavaIdentifierPart(peek())) {
+            identifier.append((char) read());
+        }
+        return identifier.toString();
+    }
+
+    /**
+     * Skips annotation arguments, which may contain nested parentheses, literals and comments
+     */
+    private void skipParentheses() throws IOException {
+        int depth = 0;
+        while (true) {
+            skipWhitespaceAndComments();
+            int c = read();
+            if (c == -1) {
+                return;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                if (--depth == 0) {
+                    return;
+                }
+            } else if (c == '"' || c == '\'') {
+                skipLiteral(c);
+            }
+        }
+    }
+
+    private void skipLiteral(int quote) throws IOException {
+        while (true) {
+            int c = read();
+            if (c == -1 || c == quote || c == '\n') {
+                return;
+            } else if (c == '\\') {
+                read();
+            }
+        }
+    }
+
+    private void skipWhitespaceAndComments() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c != -1 && Character.isWhitespace(c)) {
+                read();
+            } else if (c == '/') {
+                read();
+                int second = peek();
+                if (second == '/') {
+                    while (c != -1 && c != '\n') {
+                        c = read();
+                    }
+                } else if (second == '*') {
+                    read();
+                    int previous = 0;
+                    while (c != -1 && !(previous == '*' && c == '/')) {
+                        previous = c;
+                        c = read();
+                    }
+                } else {
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private int peek() throws IOException {
+        if (next == -2) {
+            next = reader.read();
+        }
+        return next;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        next = -2;
+        return c;
+    }
+}
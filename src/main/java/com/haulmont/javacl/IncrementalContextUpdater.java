@@ -0,0 +1,147 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.servlet.HandlerAdapter;
+import org.springframework.web.servlet.HandlerExceptionResolver;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Re-registers only the beans whose classes have been recompiled, instead of refreshing the whole context.
+ * Beans which inject them are destroyed by the bean factory together with them and are created again
+ * with the new instances.
+ * <p/>
+ * A controller recompiled only as a dependent keeps its request mappings, it is re-registered as well and
+ * the handler mappings, adapters and exception resolvers, which keep methods of the previous controller classes,
+ * are created again. The update is not possible if the source of a controller or its handler methods have changed.
+ * New components need component scanning, so they cannot be registered incrementally either.
+ */
+class IncrementalContextUpdater {
+    private static Log log = LogFactory.getLog(IncrementalContextUpdater.class);
+
+    private final DefaultListableBeanFactory beanFactory;
+    private final ApplicationContext applicationContext;
+
+    IncrementalContextUpdater(DefaultListableBeanFactory beanFactory, ApplicationContext applicationContext) {
+        this.beanFactory = beanFactory;
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * @param redefinedClasses   classes which replaced previously loaded versions, keyed by class name
+     * @param previousClasses    the replaced versions, keyed by class name
+     * @param modifiedClassNames classes whose sources have been modified, the others are recompiled as dependents
+     * @return false if the context has to be refreshed
+     */
+    boolean update(Map<String, Class> redefinedClasses, Map<String, Class> previousClasses,
+                   Set<String> modifiedClassNames) {
+        Map<String, BeanDefinition> affectedDefinitions = new LinkedHashMap<>();
+        Set<String> registeredClassNames = new HashSet<>();
+        for (String beanName : beanFactory.getBeanDefinitionNames()) {
+            BeanDefinition beanDefinition = beanFactory.getBeanDefinition(beanName);
+            String beanClassName = beanDefinition.getBeanClassName();
+            registeredClassNames.add(beanClassName);
+            if (beanClassName != null && redefinedClasses.containsKey(beanClassName)) {
+                affectedDefinitions.put(beanName, beanDefinition);
+            }
+        }
+
+        boolean handlersRedefined = false;
+        for (Class redefinedClass : redefinedClasses.values()) {
+            if (isHandler(redefinedClass)) {
+                Class previousClass = previousClasses.get(redefinedClass.getName());
+                if (modifiedClassNames.contains(redefinedClass.getName()) || previousClass == null
+                        || !getHandlerDescription(previousClass).equals(getHandlerDescription(redefinedClass))) {
+                    log.debug("Controller " + redefinedClass.getName() + " has been modified, handler mappings should be rebuilt");
+                    return false;
+                }
+                handlersRedefined = true;
+            }
+            if (!registeredClassNames.contains(redefinedClass.getName()) && isComponent(redefinedClass)) {
+                log.debug("Class " + redefinedClass.getName() + " is a new component, component scan is required");
+                return false;
+            }
+        }
+
+        if (handlersRedefined) {
+            for (String beanName : getHandlerInfrastructureBeanNames()) {
+                affectedDefinitions.put(beanName, beanFactory.getBeanDefinition(beanName));
+            }
+        }
+
+        for (BeanDefinition beanDefinition : affectedDefinitions.values()) {
+            if (!(beanDefinition instanceof AbstractBeanDefinition)) {
+                return false;
+            }
+        }
+
+        for (Map.Entry<String, BeanDefinition> entry : affectedDefinitions.entrySet()) {
+            String beanName = entry.getKey();
+            AbstractBeanDefinition beanDefinition = ((AbstractBeanDefinition) entry.getValue()).cloneBeanDefinition();
+            // the class will be resolved once again by the bean class loader
+            beanDefinition.setBeanClassName(beanDefinition.getBeanClassName());
+            String[] dependentBeanNames = beanFactory.getDependentBeans(beanName);
+            beanFactory.removeBeanDefinition(beanName);
+            beanFactory.registerBeanDefinition(beanName, beanDefinition);
+            log.debug("Bean " + beanName + " re-registered, recreated dependent beans: "
+                    + Arrays.toString(dependentBeanNames));
+        }
+
+        beanFactory.preInstantiateSingletons();
+        if (handlersRedefined) {
+            // the dispatcher servlet takes the new handler mappings, adapters and exception resolvers on this event
+            applicationContext.publishEvent(new ContextRefreshedEvent(applicationContext));
+        }
+        return true;
+    }
+
+    private Set<String> getHandlerInfrastructureBeanNames() {
+        Set<String> beanNames = new LinkedHashSet<>();
+        for (Class<?> type : Arrays.asList(HandlerMapping.class, HandlerAdapter.class, HandlerExceptionResolver.class)) {
+            for (String beanName : beanFactory.getBeanNamesForType(type, true, false)) {
+                if (beanFactory.containsBeanDefinition(beanName)) {
+                    beanNames.add(beanName);
+                }
+            }
+        }
+        return beanNames;
+    }
+
+    /**
+     * @return request mapping of the controller together with signatures and annotations of its annotated methods,
+     *         which the handler mappings and adapters are built from
+     */
+    private String getHandlerDescription(Class<?> clazz) {
+        List<String> methods = new ArrayList<>();
+        for (Method method : ReflectionUtils.getUniqueDeclaredMethods(clazz)) {
+            if (method.getAnnotations().length > 0) {
+                methods.add(method.toGenericString() + Arrays.toString(method.getAnnotations())
+                        + Arrays.deepToString(method.getParameterAnnotations()));
+            }
+        }
+        Collections.sort(methods);
+        return AnnotationUtils.findAnnotation(clazz, RequestMapping.class) + " " + methods;
+    }
+
+    private boolean isHandler(Class<?> clazz) {
+        return AnnotationUtils.findAnnotation(clazz, Controller.class) != null
+                || AnnotationUtils.findAnnotation(clazz, RequestMapping.class) != null;
+    }
+
+    private boolean isComponent(Class<?> clazz) {
+        return AnnotationUtils.findAnnotation(clazz, Component.class) != null;
+    }
+}
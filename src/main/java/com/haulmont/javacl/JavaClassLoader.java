@@ -1,32 +1,53 @@
 package com.haulmont.javacl;
 
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.haulmont.javacl.compiler.CharSequenceCompiler;
+import com.haulmont.javacl.compiler.CharSequenceCompilerException;
+import com.haulmont.javacl.compiler.CompileWorkerPool;
+import com.haulmont.javacl.compiler.CompilerPool;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.CachedIntrospectionResults;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.beans.factory.support.DefaultListableBeanFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.web.context.support.XmlWebApplicationContext;
 
-import javax.tools.DiagnosticCollector;
-import javax.tools.JavaFileObject;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.Introspector;
 import java.io.File;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class JavaClassLoader extends URLClassLoader implements ApplicationContextAware {
+public class JavaClassLoader extends URLClassLoader implements ApplicationContextAware, DisposableBean {
     private static final String JAVA_CLASSPATH = System.getProperty("java.class.path");
     private static final String PATH_SEPARATOR = System.getProperty("path.separator");
     private static final String JAR_EXT = ".jar";
+    private static final int DEFAULT_LOCK_STRIPES = 64;
 
     private static Log log = LogFactory.getLog(JavaClassLoader.class);
 
@@ -35,25 +56,56 @@ public class JavaClassLoader extends URLClassLoader implements ApplicationContex
 
     protected final String rootDir;
 
-    protected final Map<String, TimestampClass> compiled = new ConcurrentHashMap<>();
-    protected final ConcurrentHashMap<String, Lock> locks = new ConcurrentHashMap<>();
+    protected final AtomicReference<GenerationSnapshot> snapshot = new AtomicReference<>(GenerationSnapshot.EMPTY);
+    protected final Set<GenerationDraft> activeDrafts = Collections.newSetFromMap(new ConcurrentHashMap<GenerationDraft, Boolean>());
+    protected final DependencyGraph dependencyGraph = new DependencyGraph();
+    protected volatile StripedLock locks = new StripedLock(DEFAULT_LOCK_STRIPES);
 
     protected final ProxyClassLoader proxyClassLoader;
+    protected final CompilerPool compilerPool;
     protected final SourceProvider sourceProvider;
+    protected final ClassLoaderMetrics metrics = new ClassLoaderMetrics(this);
+    protected final GenerationTracker generationTracker = new GenerationTracker();
+    protected ObjectName metricsObjectName;
+
+    protected BytecodeCache bytecodeCache;
+    protected volatile boolean contentFingerprints;
+    protected volatile SourceChangeTracker changeTracker;
 
     protected XmlWebApplicationContext applicationContext;
     protected DefaultListableBeanFactory beanFactory;
+    protected volatile boolean incrementalContextUpdate;
+    protected volatile boolean leanMode;
+    protected volatile boolean compressRetainedByteCode = true;
+    protected volatile boolean abiFingerprints;
 
     private static volatile boolean refreshing = false;
 
+    private long pollingInterval = 1000;
+
+    private boolean precompile;
+    private int precompileThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService precompileExecutor;
+
+    private volatile int compileThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService compileExecutor;
+
+    private volatile boolean staleWhileRevalidate;
+    private final ConcurrentMap<String, ListenableFuture<Class>> revalidations = new ConcurrentHashMap<>();
+    private ListeningExecutorService reloadExecutor;
+
+    private int compileWorkers;
+    private List<String> compileWorkerJvmOptions = Collections.singletonList("-XX:+UseSerialGC");
+
 
     public JavaClassLoader(String confDir, String classPath) {
         super(new URL[0], Thread.currentThread().getContextClassLoader());
 
-        this.proxyClassLoader = new ProxyClassLoader(Thread.currentThread().getContextClassLoader(), compiled);
+        this.proxyClassLoader = new ProxyClassLoader(Thread.currentThread().getContextClassLoader(), snapshot);
         this.rootDir = confDir;
         this.classPathDirectories = classPath;
         this.classPath = buildClasspath();
+        this.compilerPool = new CompilerPool(this.classPath);
         this.sourceProvider = new SourceProvider(rootDir);
     }
 
@@ -61,10 +113,11 @@ public class JavaClassLoader extends URLClassLoader implements ApplicationContex
     JavaClassLoader(ClassLoader parent, String rootDir, String cubaClassPath) {
         super(new URL[0], parent);
 
-        this.proxyClassLoader = new ProxyClassLoader(parent, compiled);
+        this.proxyClassLoader = new ProxyClassLoader(parent, snapshot);
         this.rootDir = rootDir;
         this.classPathDirectories = cubaClassPath;
         this.classPath = buildClasspath();
+        this.compilerPool = new CompilerPool(classPath);
         this.sourceProvider = new SourceProvider(rootDir);
     }
 
@@ -72,98 +125,1071 @@ public class JavaClassLoader extends URLClassLoader implements ApplicationContex
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         this.applicationContext = (XmlWebApplicationContext) applicationContext;
         this.applicationContext.setClassLoader(this);
+        if (precompile) {
+            precompile();
+        }
+    }
+
+    /**
+     * Enables compilation of all sources under the root directory when the loader is attached to the context,
+     * so requests do not wait for the compiler
+     */
+    public void setPrecompile(boolean precompile) {
+        this.precompile = precompile;
+    }
+
+    /**
+     * Number of threads compiling independent groups of classes at startup,
+     * used if no precompile executor is set
+     */
+    public void setPrecompileThreads(int precompileThreads) {
+        this.precompileThreads = precompileThreads;
+    }
+
+    public void setPrecompileExecutor(ExecutorService precompileExecutor) {
+        this.precompileExecutor = precompileExecutor;
+    }
+
+    /**
+     * Compiles all sources under the root directory, independent groups of classes are compiled in parallel.
+     * Returns when the compilation is finished.
+     */
+    public void precompile() {
+        ExecutorService executor = precompileExecutor;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Math.max(1, precompileThreads));
+        }
+        try {
+            new Precompiler(this, executor).precompile();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (executor != precompileExecutor) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Enables persistent byte code cache, so unchanged sources are not recompiled after restart
+     */
+    public void setBytecodeCacheDir(String bytecodeCacheDir) {
+        this.bytecodeCache = StringUtils.isNotBlank(bytecodeCacheDir)
+                ? new BytecodeCache(new File(bytecodeCacheDir), classPath, getCompilerOptions())
+                : null;
+    }
+
+    /**
+     * Encoding of the sources under the root directory, the platform encoding is used by default
+     */
+    public void setSourceEncoding(String sourceEncoding) {
+        sourceProvider.setCharset(StringUtils.isNotBlank(sourceEncoding)
+                ? Charset.forName(sourceEncoding) : Charset.defaultCharset());
+    }
+
+    /**
+     * Enables content fingerprint mode: a class is recompiled only if the content of its source has changed,
+     * not just the modification time
+     */
+    public void setContentFingerprints(boolean contentFingerprints) {
+        this.contentFingerprints = contentFingerprints;
+    }
+
+    /**
+     * Enables background tracking of source modifications, so loading of an already compiled class
+     * does not touch the file system until something changes under the root directory.
+     *
+     * @param changeTracking "watch" for file system notifications, "poll" for periodic scanning
+     *                       of the root directory, blank to check sources on each call
+     */
+    public void setChangeTracking(String changeTracking) {
+        setChangeTracker(createChangeTracker(changeTracking));
+    }
+
+    /**
+     * Scanning interval for the "poll" change tracking
+     */
+    public void setPollingInterval(long pollingInterval) {
+        this.pollingInterval = pollingInterval;
+        if (changeTracker instanceof PollingChangeTracker) {
+            setChangeTracker(new PollingChangeTracker(Paths.get(rootDir), pollingInterval));
+        }
+    }
+
+    private SourceChangeTracker createChangeTracker(String changeTracking) {
+        if (StringUtils.isBlank(changeTracking)) {
+            return null;
+        } else if ("watch".equals(changeTracking)) {
+            return new WatchServiceChangeTracker(Paths.get(rootDir));
+        } else if ("poll".equals(changeTracking)) {
+            return new PollingChangeTracker(Paths.get(rootDir), pollingInterval);
+        } else {
+            throw new IllegalArgumentException("Unsupported change tracking: " + changeTracking);
+        }
+    }
+
+    private synchronized void setChangeTracker(SourceChangeTracker changeTracker) {
+        if (this.changeTracker != null) {
+            this.changeTracker.stop();
+        }
+        this.changeTracker = changeTracker;
+        if (changeTracker != null) {
+            sourceProvider.setFileIndex(new FileIndex(Paths.get(rootDir), changeTracker));
+            changeTracker.start();
+        } else {
+            sourceProvider.setFileIndex(null);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        setChangeTracker(null);
+        setCompileThreads(1);
+        setCompileWorkers(0);
+        shutdownReloadExecutor();
+        setMetricsObjectName(null);
+    }
+
+    public ClassLoaderMetricsMBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Forwards metrics to an external registry in addition to the MBean
+     */
+    public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+        metrics.setRegistry(metricsRegistry);
+    }
+
+    /**
+     * Registers the metrics MBean in the platform MBean server under the given name, blank to unregister
+     */
+    public synchronized void setMetricsObjectName(String objectName) {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (metricsObjectName != null) {
+                mBeanServer.unregisterMBean(metricsObjectName);
+                metricsObjectName = null;
+            }
+            if (StringUtils.isNotBlank(objectName)) {
+                metricsObjectName = new ObjectName(objectName);
+                mBeanServer.registerMBean(metrics, metricsObjectName);
+            }
+        } catch (JMException e) {
+            log.warn("Unable to register metrics MBean " + objectName, e);
+        }
+    }
+
+    /**
+     * Number of threads compiling independent groups of classes within one reload, 1 to compile in the calling thread
+     */
+    public synchronized void setCompileThreads(int compileThreads) {
+        this.compileThreads = compileThreads;
+        if (compileExecutor != null) {
+            compileExecutor.shutdown();
+            compileExecutor = null;
+        }
+    }
+
+    public int getCompileThreads() {
+        return compileThreads;
+    }
+
+    private synchronized ExecutorService getCompileExecutor() {
+        if (compileThreads <= 1) {
+            return null;
+        }
+        if (compileExecutor == null) {
+            compileExecutor = Executors.newFixedThreadPool(compileThreads, createThreadFactory("javacl-compiler-"));
+        }
+        return compileExecutor;
+    }
+
+    private static ThreadFactory createThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Enables serving the last successfully compiled version of a modified class while it is recompiled
+     * in background. Classes which have not been loaded yet are still compiled by the calling thread.
+     */
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    private synchronized ListeningExecutorService getReloadExecutor() {
+        if (reloadExecutor == null) {
+            reloadExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+                    Math.max(2, Runtime.getRuntime().availableProcessors()), createThreadFactory("javacl-reload-")));
+        }
+        return reloadExecutor;
+    }
+
+    private synchronized void shutdownReloadExecutor() {
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdown();
+            reloadExecutor = null;
+        }
+    }
+
+    /**
+     * Number of worker JVMs which run javac instead of this JVM, 0 to compile in process.
+     * If the workers fail, sources are compiled in process.
+     */
+    public synchronized void setCompileWorkers(int compileWorkers) {
+        this.compileWorkers = compileWorkers;
+        compilerPool.setWorkerPool(compileWorkers > 0
+                ? new CompileWorkerPool(compileWorkers, compileWorkerJvmOptions) : null);
+    }
+
+    public synchronized int getCompileWorkers() {
+        return compileWorkers;
+    }
+
+    /**
+     * Options of the compile worker JVMs separated by spaces, such as heap size. Applied to the workers
+     * started after that.
+     */
+    public synchronized void setCompileWorkerJvmOptions(String compileWorkerJvmOptions) {
+        this.compileWorkerJvmOptions = Arrays.asList(StringUtils.split(StringUtils.defaultString(compileWorkerJvmOptions)));
+        if (compileWorkers > 0) {
+            setCompileWorkers(compileWorkers);
+        }
+    }
+
+    /**
+     * Number of locks which guard compilation of dynamic classes. Classes with different names may share a lock.
+     */
+    public void setLockStripes(int lockStripes) {
+        this.locks = new StripedLock(lockStripes);
+    }
+
+    public int getLockStripes() {
+        return locks.getStripes();
+    }
+
+    public long getLockAcquisitionCount() {
+        return locks.getAcquisitionCount();
+    }
+
+    /**
+     * @return number of times a thread had to wait for a lock held by another thread
+     */
+    public long getLockContentionCount() {
+        return locks.getContentionCount();
+    }
+
+    /**
+     * @return approximate memory used by the dependency graph of dynamic classes, in bytes
+     */
+    public long getDependencyGraphFootprint() {
+        return dependencyGraph.getMemoryFootprint();
+    }
+
+    /**
+     * Enables re-registration of the recompiled beans and beans which inject them, instead of the context refresh.
+     * The context is still refreshed if a controller or a new component has been compiled.
+     */
+    public void setIncrementalContextUpdate(boolean incrementalContextUpdate) {
+        this.incrementalContextUpdate = incrementalContextUpdate;
+    }
+
+    /**
+     * Enables lean memory mode: byte code of compiled classes is dropped once they are defined
+     * and source text is released right after compilation
+     */
+    public void setLeanMode(boolean leanMode) {
+        this.leanMode = leanMode;
+    }
+
+    /**
+     * In lean mode, keep a compressed copy of the byte code for getResourceAsStream and for
+     * nested classes which are defined later. Enabled by default.
+     */
+    public void setCompressRetainedByteCode(boolean compressRetainedByteCode) {
+        this.compressRetainedByteCode = compressRetainedByteCode;
+    }
+
+    /**
+     * Enables ABI fingerprints: dependent classes are recompiled only if the public API of the classes
+     * they depend on has changed, otherwise their previous byte code is defined again
+     */
+    public void setAbiFingerprints(boolean abiFingerprints) {
+        this.abiFingerprints = abiFingerprints;
+    }
+
+    /**
+     * @return approximate heap retained by the byte code of each compiled dynamic class, in bytes
+     */
+    public Map<String, Long> getRetainedSizes() {
+        Map<String, Long> retainedSizes = new TreeMap<>();
+        for (Map.Entry<String, TimestampClass> entry : snapshot.get().getClasses().entrySet()) {
+            retainedSizes.put(entry.getKey(), CharSequenceCompiler.getRetainedSize(entry.getValue().clazz));
+        }
+        return retainedSizes;
+    }
+
+    /**
+     * @return class loaders created by compilations which have not been garbage collected yet, oldest first,
+     *         with the known references keeping them alive
+     */
+    public List<GenerationInfo> getLiveGenerations() {
+        Map<ClassLoader, List<String>> pins = collectGenerationPins();
+        List<GenerationInfo> result = new ArrayList<>();
+        for (GenerationTracker.Generation generation : generationTracker.getLiveGenerations()) {
+            ClassLoader classLoader = generation.get();
+            if (classLoader == null) {
+                continue;
+            }
+            List<String> generationPins = pins.get(classLoader);
+            result.add(new GenerationInfo(generation.id, new Date(generation.createdTime),
+                    generation.retiredTime > 0 ? new Date(generation.retiredTime) : null,
+                    CharSequenceCompiler.getClassNames(classLoader),
+                    generationPins != null ? generationPins : new ArrayList<String>()));
+        }
+        return result;
+    }
+
+    private Map<ClassLoader, List<String>> collectGenerationPins() {
+        Map<ClassLoader, List<String>> pins = new IdentityHashMap<>();
+        for (Map.Entry<String, TimestampClass> entry : snapshot.get().getClasses().entrySet()) {
+            addPin(pins, entry.getValue().clazz.getClassLoader(), "loaded class " + entry.getKey());
+        }
+        for (GenerationDraft draft : activeDrafts) {
+            for (Map.Entry<String, TimestampClass> added : draft.getAdded().entrySet()) {
+                addPin(pins, added.getValue().clazz.getClassLoader(),
+                        "class " + added.getKey() + " not published yet by thread " + draft.getOwner().getName());
+            }
+        }
+        if (applicationContext != null) {
+            try {
+                ConfigurableListableBeanFactory currentBeanFactory = applicationContext.getBeanFactory();
+                for (String beanName : currentBeanFactory.getSingletonNames()) {
+                    Object bean = currentBeanFactory.getSingleton(beanName);
+                    if (bean != null) {
+                        addPin(pins, bean.getClass().getClassLoader(), "Spring singleton " + beanName);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // the context is being refreshed or closed
+            }
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            addPin(pins, thread.getContextClassLoader(), "context class loader of thread " + thread.getName());
+        }
+        return pins;
+    }
+
+    private void addPin(Map<ClassLoader, List<String>> pins, ClassLoader classLoader, String pin) {
+        if (classLoader == null) {
+            return;
+        }
+        List<String> classLoaderPins = pins.get(classLoader);
+        if (classLoaderPins == null) {
+            classLoaderPins = new ArrayList<>();
+            pins.put(classLoader, classLoaderPins);
+        }
+        classLoaderPins.add(pin);
     }
 
     public void clearCache() {
-        compiled.clear();
+        GenerationSnapshot current;
+        do {
+            current = snapshot.get();
+        } while (!snapshot.compareAndSet(current, current.cleared()));
     }
 
     public Class loadClass(final String fullClassName, boolean resolve) throws ClassNotFoundException {
+        metrics.loadClass();
         String containerClassName = StringUtils.substringBefore(fullClassName, "$");
 
-        try {
-            lock(containerClassName);
-            Class clazz;
+        SourceChangeTracker changeTracker = this.changeTracker;
+        long generation = changeTracker != null && changeTracker.isReady() ? changeTracker.getGeneration() : -1;
+        if (generation >= 0) {
+            TimestampClass timestampClass = getTimestampClass(containerClassName);
+            if (timestampClass != null && timestampClass.verifiedGeneration == generation) {
+                TimestampClass fullTimestampClass = getTimestampClass(fullClassName);
+                if (fullTimestampClass != null) {
+                    metrics.cacheHit();
+                    return fullTimestampClass.clazz;
+                }
+            }
+        }
+
+        if (!sourceProvider.sourceExistsInFileSystem(containerClassName)) {
+            metrics.parentDelegation();
+            return super.loadClass(fullClassName, resolve);
+        }
+
+        if (staleWhileRevalidate) {
+            Class staleClass = loadStaleClass(fullClassName, containerClassName, generation);
+            if (staleClass != null) {
+                return staleClass;
+            }
+        }
+        return loadDynamicClass(fullClassName, containerClassName, generation);
+    }
 
-            if (!sourceProvider.getSourceFile(containerClassName).exists()) {
-                clazz = super.loadClass(fullClassName, resolve);
-                return clazz;
+    /**
+     * Loads the class in background, waiting for the compilation if its sources have been modified.
+     * The future fails with ClassNotFoundException or with the compilation error.
+     */
+    public ListenableFuture<Class> loadClassAsync(final String className) {
+        return getReloadExecutor().submit(new Callable<Class>() {
+            @Override
+            public Class call() throws Exception {
+                return loadUpToDateClass(className);
             }
+        });
+    }
+
+    private Class loadUpToDateClass(String fullClassName) throws ClassNotFoundException {
+        String containerClassName = StringUtils.substringBefore(fullClassName, "$");
+        if (!sourceProvider.sourceExistsInFileSystem(containerClassName)) {
+            return super.loadClass(fullClassName, false);
+        }
+        SourceChangeTracker changeTracker = this.changeTracker;
+        long generation = changeTracker != null && changeTracker.isReady() ? changeTracker.getGeneration() : -1;
+        return loadDynamicClass(fullClassName, containerClassName, generation);
+    }
+
+    /**
+     * Returns the last compiled version of the class without waiting for a compilation in progress.
+     * If the class has not been verified by anyone yet, its sources are checked and a background
+     * recompilation is started if they have been modified.
+     *
+     * @return null if there is no compiled version of the class
+     */
+    private Class loadStaleClass(String fullClassName, String containerClassName, long generation)
+            throws ClassNotFoundException {
+        // a compilation in progress does not touch the published snapshot
+        TimestampClass staleClass = getTimestampClass(fullClassName);
+        if (staleClass == null) {
+            return null;
+        }
 
+        StripedLock locks = this.locks;
+        if (!revalidations.containsKey(containerClassName) && locks.tryLock(containerClassName)) {
+            try {
+                long startTime = System.nanoTime();
+                if (new CompilationScope(this, containerClassName).compilationNeeded()) {
+                    revalidate(containerClassName);
+                } else {
+                    markVerified(containerClassName, generation);
+                    metrics.verified(System.nanoTime() - startTime);
+                    TimestampClass currentClass = getTimestampClass(fullClassName);
+                    return currentClass != null ? currentClass.clazz : staleClass.clazz;
+                }
+            } finally {
+                locks.unlock(containerClassName);
+            }
+        }
+        metrics.staleHit();
+        return staleClass.clazz;
+    }
+
+    /**
+     * Starts recompilation of the class in background unless it is already in progress
+     */
+    private void revalidate(final String containerClassName) {
+        final SettableFuture<Class> future = SettableFuture.create();
+        if (revalidations.putIfAbsent(containerClassName, future) != null) {
+            return;
+        }
+        getReloadExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Class clazz = loadUpToDateClass(containerClassName);
+                    revalidations.remove(containerClassName, future);
+                    future.set(clazz);
+                } catch (Throwable e) {
+                    log.error("Unable to recompile " + containerClassName + ", the previous version is used", e);
+                    revalidations.remove(containerClassName, future);
+                    future.setException(e);
+                }
+            }
+        });
+    }
+
+    private Class loadDynamicClass(String fullClassName, String containerClassName, long generation)
+            throws ClassNotFoundException {
+        long startTime = System.nanoTime();
+        StripedLock locks = this.locks;
+        locks.lock(containerClassName);
+        try {
             CompilationScope compilationScope = new CompilationScope(this, containerClassName);
             if (!compilationScope.compilationNeeded()) {
+                markVerified(containerClassName, generation);
+                metrics.verified(System.nanoTime() - startTime);
                 return getTimestampClass(fullClassName).clazz;
             }
 
-            String src;
+            Map<String, Class> compiledClasses = compile(Collections.singleton(containerClassName), generation, true, new ReloadResult());
+            return compiledClasses.get(fullClassName);
+        } finally {
+            locks.unlock(containerClassName);
+        }
+    }
+
+    /**
+     * Compiles the given classes, with their dependencies and dependent classes, in one compilation
+     * and updates the Spring context once. Classes which are not modified are not compiled.
+     *
+     * @param classNames names of dynamic classes, other classes are ignored
+     */
+    public ReloadResult loadClasses(Collection<String> classNames) throws ClassNotFoundException {
+        return loadClasses(classNames, true);
+    }
+
+    ReloadResult loadClasses(Collection<String> classNames, boolean updateContext) throws ClassNotFoundException {
+        Set<String> containerClassNames = new TreeSet<>();
+        for (String className : classNames) {
+            String containerClassName = StringUtils.substringBefore(className, "$");
+            if (sourceProvider.sourceExistsInFileSystem(containerClassName)) {
+                containerClassNames.add(containerClassName);
+            }
+        }
+
+        SourceChangeTracker changeTracker = this.changeTracker;
+        long generation = changeTracker != null && changeTracker.isReady() ? changeTracker.getGeneration() : -1;
+
+        StripedLock locks = this.locks;
+        locks.lockAll(containerClassNames);
+        try {
+            List<String> modifiedClassNames = new ArrayList<>();
+            List<String> verifiedClassNames = new ArrayList<>();
+            for (String containerClassName : containerClassNames) {
+                if (new CompilationScope(this, containerClassName).compilationNeeded()) {
+                    modifiedClassNames.add(containerClassName);
+                } else {
+                    markVerified(containerClassName, generation);
+                    verifiedClassNames.add(containerClassName);
+                }
+            }
+            // modified classes stay dirty until they are compiled successfully
+            if (changeTracker != null) {
+                changeTracker.clean(verifiedClassNames, generation);
+            }
+
+            ReloadResult result = new ReloadResult();
+            if (!modifiedClassNames.isEmpty()) {
+                compile(modifiedClassNames, generation, updateContext, result);
+            }
+            return result;
+        } finally {
+            locks.unlockAll(containerClassNames);
+        }
+    }
+
+    /**
+     * Compiles all loaded dynamic classes whose sources or dependencies have been modified.
+     * With change tracking only the classes reported by the tracker are checked.
+     */
+    public ReloadResult reloadChanged() throws ClassNotFoundException {
+        SourceChangeTracker changeTracker = this.changeTracker;
+        GenerationSnapshot current = snapshot.get();
+        Collection<String> candidates = changeTracker != null && changeTracker.isReady()
+                ? changeTracker.getDirtyClasses()
+                : current.getClasses().keySet();
+
+        List<String> classNames = new ArrayList<>();
+        for (String className : candidates) {
+            if (className.indexOf('$') < 0 && current.contains(className)) {
+                classNames.add(className);
+            }
+        }
+        return loadClasses(classNames);
+    }
+
+    /**
+     * Compiles the classes together with their dependencies and dependent classes, stores and links the result
+     * and updates the Spring context if requested. Should be called under the locks of the classes.
+     * <p/>
+     * The compilation works on a private draft and publishes all its classes with one snapshot swap,
+     * other threads see the previous versions until then.
+     */
+    private Map<String, Class> compile(Collection<String> containerClassNames, long generation,
+                                       boolean updateContext, ReloadResult result) throws ClassNotFoundException {
+        GenerationDraft draft = new GenerationDraft(snapshot);
+        SourcesAndDependencies sourcesAndDependencies = new SourcesAndDependencies(this, draft);
+        for (String containerClassName : containerClassNames) {
             try {
-                src = sourceProvider.getSourceString(containerClassName);
+                sourcesAndDependencies.addSource(containerClassName);
             } catch (IOException e) {
                 throw new ClassNotFoundException("Could not load java sources for class " + containerClassName);
             }
+        }
 
-            try {
-                log.debug("Compiling " + containerClassName);
-                final DiagnosticCollector<JavaFileObject> errs = new DiagnosticCollector<>();
+        activeDrafts.add(draft);
+        try {
+            log.debug("Compiling " + containerClassNames);
 
-                SourcesAndDependencies sourcesAndDependencies = new SourcesAndDependencies(rootDir, this);
-                sourcesAndDependencies.putSource(containerClassName, src);
+            for (String containerClassName : containerClassNames) {
                 sourcesAndDependencies.collectDependencies(containerClassName);
-                Map<String, CharSequence> sourcesForCompilation = sourcesAndDependencies.collectSourcesForCompilation(containerClassName);
+            }
+            Map<String, CharSequence> sourcesForCompilation = sourcesAndDependencies.collectSourcesForCompilation(containerClassNames);
+            Set<String> compiledSourceNames = new HashSet<>(sourcesForCompilation.keySet());
+            result.phaseFinished(ReloadResult.SCOPE_PHASE);
 
-                @SuppressWarnings("unchecked")
-                Map<String, Class> compiledClasses = createCompiler().compile(sourcesForCompilation, errs);
+            Map<String, Class> compiledClasses;
+            Multimap<String, String> dependencies;
+            Map<String, String> abiFingerprints;
+            CompilationScheduler scheduler = new CompilationScheduler(this, draft, getCompileExecutor());
+            try {
+                long compileStartTime = System.nanoTime();
+                compiledClasses = compile(scheduler, sourcesForCompilation, sourcesAndDependencies, draft);
+                metrics.compiled(compiledSourceNames.size(), System.nanoTime() - compileStartTime);
+                result.phaseFinished(ReloadResult.COMPILE_PHASE);
+                Map<String, byte[]> byteCode = scheduler.getByteCode();
+                dependencies = collectExactDependencies(byteCode, sourcesAndDependencies);
+                abiFingerprints = this.abiFingerprints
+                        ? getAbiFingerprints(byteCode)
+                        : Collections.<String, String>emptyMap();
+                if (leanMode) {
+                    scheduler.releaseByteCode(compressRetainedByteCode);
+                }
+            } finally {
+                scheduler.release();
+                if (leanMode) {
+                    // javac has parsed the text, failed compilations keep it no longer than successful ones
+                    sourcesAndDependencies.sources.clear();
+                }
+            }
 
-                Map<String, TimestampClass> compiledTimestampClasses = wrapCompiledClasses(compiledClasses);
-                compiled.putAll(compiledTimestampClasses);
-                linkDependencies(compiledTimestampClasses, sourcesAndDependencies.dependencies);
+            Map<String, Class> replacedClasses = getReplacedClasses(compiledClasses, scheduler, draft);
+            Map<String, TimestampClass> compiledTimestampClasses = wrapCompiledClasses(compiledClasses, sourcesAndDependencies.fingerprints, draft);
+            for (Map.Entry<String, String> entry : abiFingerprints.entrySet()) {
+                TimestampClass timestampClass = compiledTimestampClasses.get(entry.getKey());
+                if (timestampClass != null) {
+                    timestampClass.abiFingerprint = entry.getValue();
+                }
+            }
+            draft.add(compiledTimestampClasses);
+            draft.publish();
+            linkDependencies(compiledTimestampClasses.keySet(), dependencies);
+            SourceChangeTracker changeTracker = this.changeTracker;
+            if (changeTracker != null) {
+                changeTracker.clean(compiledSourceNames, generation);
+            }
+            for (String className : compiledSourceNames) {
+                markVerified(className, generation);
+            }
+            result.addCompiledClasses(compiledSourceNames);
+            result.phaseFinished(ReloadResult.LINK_PHASE);
 
-                clazz = compiledClasses.get(fullClassName);
+            if (updateContext) {
+                long contextStartTime = System.nanoTime();
+                updateSpringContext(replacedClasses, draft.getRemoved());
+                metrics.contextUpdated(System.nanoTime() - contextStartTime);
+            }
+            result.phaseFinished(ReloadResult.CONTEXT_PHASE);
+            retireGenerations(draft.getRemoved());
 
-                updateSpringContext();
+            log.debug("Reload result: " + result);
+            return compiledClasses;
+        } catch (Exception e) {
+            metrics.compilationFailed();
+            // nothing has been published, the draft is dropped
+            throw new RuntimeException(e);
+        } finally {
+            draft.close();
+            activeDrafts.remove(draft);
+        }
+    }
 
-                return clazz;
-            } catch (Exception e) {
-                proxyClassLoader.restoreRemoved();
-                throw new RuntimeException(e);
-            } finally {
-                proxyClassLoader.cleanupRemoved();
+    /**
+     * Defines the classes from the byte code cache or compiles them in waves. Classes of each wave are added
+     * to the draft, so the following waves can use them.
+     */
+    private Map<String, Class> compile(CompilationScheduler scheduler, Map<String, CharSequence> sources,
+                                       final SourcesAndDependencies sourcesAndDependencies,
+                                       final GenerationDraft draft)
+            throws CharSequenceCompilerException, InterruptedException {
+        if (bytecodeCache != null) {
+            Map<String, byte[]> cachedByteCode = bytecodeCache.load(sources, sourcesAndDependencies.dependencies);
+            if (cachedByteCode != null) {
+                metrics.bytecodeCacheHit();
+                return scheduler.defineClasses(cachedByteCode);
+            }
+        }
+
+        CompilationScheduler.WaveListener listener = new CompilationScheduler.WaveListener() {
+            @Override
+            public void compiled(Map<String, Class> classes) {
+                draft.add(wrapCompiledClasses(classes, sourcesAndDependencies.fingerprints, draft));
+            }
+        };
+        Map<String, Class> compiledClasses = abiFingerprints && !sourcesAndDependencies.dependentNames.isEmpty()
+                ? compileReusingDependents(scheduler, sources, sourcesAndDependencies, draft, listener)
+                : scheduler.compile(sources, sourcesAndDependencies.dependencies, listener,
+                        sourcesAndDependencies.classPathByteCode);
+        if (bytecodeCache != null) {
+            bytecodeCache.store(sources, scheduler.getByteCode(), sourcesAndDependencies.dependencies);
+        }
+        return compiledClasses;
+    }
+
+    /**
+     * Compiles the modified classes first and then only the dependent classes which use a changed ABI.
+     * Other dependent classes are defined again from the byte code kept by their previous class loaders,
+     * since the previous versions are bound to the replaced classes.
+     */
+    private Map<String, Class> compileReusingDependents(CompilationScheduler scheduler, Map<String, CharSequence> sources,
+                                                        SourcesAndDependencies sourcesAndDependencies,
+                                                        GenerationDraft draft, CompilationScheduler.WaveListener listener)
+            throws CharSequenceCompilerException, InterruptedException {
+        Set<String> dependentNames = sourcesAndDependencies.dependentNames;
+        Map<String, CharSequence> modifiedSources = new HashMap<>(sources);
+        modifiedSources.keySet().removeAll(dependentNames);
+        Map<String, Class> compiledClasses = new HashMap<>(scheduler.compile(modifiedSources,
+                sourcesAndDependencies.dependencies, listener, sourcesAndDependencies.classPathByteCode));
+        draft.add(wrapCompiledClasses(compiledClasses, sourcesAndDependencies.fingerprints, draft));
+
+        Map<String, String> abiFingerprints = getAbiFingerprints(scheduler.getByteCode());
+        Set<String> changedAbiNames = new HashSet<>();
+        for (String modifiedName : modifiedSources.keySet()) {
+            // the draft is not published yet, so the snapshot keeps the previous versions
+            TimestampClass previous = snapshot.get().get(modifiedName);
+            String abiFingerprint = abiFingerprints.get(modifiedName);
+            if (previous == null || abiFingerprint == null || !abiFingerprint.equals(previous.abiFingerprint)) {
+                changedAbiNames.add(modifiedName);
+            }
+        }
+
+        Set<String> recompiledNames = new HashSet<>();
+        addDependents(changedAbiNames, dependentNames, recompiledNames);
+        Map<String, byte[]> reusedByteCode = new HashMap<>();
+        Set<String> reusedNames = new HashSet<>();
+        for (String dependentName : dependentNames) {
+            if (recompiledNames.contains(dependentName)) {
+                continue;
+            }
+            TimestampClass previous = draft.getRemoved().get(dependentName);
+            Map<String, byte[]> retainedByteCode = getRetainedByteCode(dependentName, previous);
+            if (retainedByteCode == null) {
+                recompiledNames.add(dependentName);
+                addDependents(Collections.singleton(dependentName), dependentNames, recompiledNames);
+            } else {
+                reusedByteCode.putAll(retainedByteCode);
+                reusedNames.add(dependentName);
+            }
+        }
+        // package-private members are accessible only from the same class loader, so classes of a package
+        // with recompiled classes are recompiled with them
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Set<String> recompiledPackageNames = new HashSet<>();
+            for (String recompiledName : recompiledNames) {
+                recompiledPackageNames.add(SourcesAndDependencies.getPackageName(recompiledName));
+            }
+            for (String reusedName : reusedNames) {
+                if (!recompiledNames.contains(reusedName)
+                        && recompiledPackageNames.contains(SourcesAndDependencies.getPackageName(reusedName))) {
+                    recompiledNames.add(reusedName);
+                    addDependents(Collections.singleton(reusedName), dependentNames, recompiledNames);
+                    changed = true;
+                }
+            }
+        }
+        reusedNames.removeAll(recompiledNames);
+        Iterator<String> iterator = reusedByteCode.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!reusedNames.contains(StringUtils.substringBefore(iterator.next(), "$"))) {
+                iterator.remove();
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("ABI of " + changedAbiNames + " changed, reusing " + reusedNames.size()
+                    + " dependent classes, recompiling " + recompiledNames.size());
+        }
+
+        if (!reusedByteCode.isEmpty()) {
+            Map<String, Class> reusedClasses = scheduler.defineClasses(reusedByteCode);
+            compiledClasses.putAll(reusedClasses);
+            draft.add(wrapCompiledClasses(reusedClasses, sourcesAndDependencies.fingerprints, draft));
+        }
+        if (!recompiledNames.isEmpty()) {
+            Map<String, CharSequence> recompiledSources = new HashMap<>(sources);
+            recompiledSources.keySet().retainAll(recompiledNames);
+            Map<String, byte[]> classPathByteCode = new HashMap<>(sourcesAndDependencies.classPathByteCode);
+            classPathByteCode.putAll(scheduler.getByteCode());
+            compiledClasses.putAll(scheduler.compile(recompiledSources, sourcesAndDependencies.dependencies,
+                    listener, classPathByteCode));
+        }
+        return compiledClasses;
+    }
+
+    /**
+     * Adds the transitive dependents of the classes which are among the given dependent classes
+     */
+    private void addDependents(Collection<String> classNames, Set<String> dependentNames, Set<String> result) {
+        for (String className : classNames) {
+            for (String dependentName : dependencyGraph.getTransitiveDependents(className)) {
+                if (dependentNames.contains(dependentName)) {
+                    result.add(dependentName);
+                }
             }
-        } finally {
-            unlock(containerClassName);
         }
     }
 
-    private void updateSpringContext() {
+    /**
+     * @return byte code of the loaded version of the class and its nested classes, null if there is none,
+     *         the source has been modified since or the class loader no longer keeps all of the byte code
+     */
+    Map<String, byte[]> getRetainedByteCode(String containerClassName, TimestampClass previous) {
+        if (previous == null || CompilationScope.isModified(sourceProvider,
+                sourceProvider.getSourceFile(containerClassName), containerClassName, previous)) {
+            return null;
+        }
+        ClassLoader classLoader = previous.clazz.getClassLoader();
+        Map<String, byte[]> byteCode = new HashMap<>();
+        for (String className : CharSequenceCompiler.getClassNames(classLoader)) {
+            if (className.equals(containerClassName) || className.startsWith(containerClassName + "$")) {
+                byte[] classByteCode = CharSequenceCompiler.getByteCode(classLoader, className);
+                if (classByteCode == null) {
+                    return null;
+                }
+                byteCode.put(className, classByteCode);
+            }
+        }
+        return byteCode.containsKey(containerClassName) ? byteCode : null;
+    }
+
+    /**
+     * @return digests of the ABI of the top level classes together with their nested classes,
+     *         classes with unreadable byte code are left out, so they are treated as changed
+     */
+    private Map<String, String> getAbiFingerprints(Map<String, byte[]> byteCode) {
+        Map<String, StringBuilder> abis = new HashMap<>();
+        Set<String> unreadableNames = new HashSet<>();
+        for (Map.Entry<String, byte[]> entry : new TreeMap<>(byteCode).entrySet()) {
+            String containerClassName = StringUtils.substringBefore(entry.getKey(), "$");
+            StringBuilder abi = abis.get(containerClassName);
+            if (abi == null) {
+                abi = new StringBuilder();
+                abis.put(containerClassName, abi);
+            }
+            try {
+                abi.append(entry.getKey()).append(':').append(ClassFile.parse(entry.getValue()).getAbi()).append('\n');
+            } catch (IOException e) {
+                log.warn("Unable to read ABI of " + entry.getKey() + " from byte code, dependents are recompiled", e);
+                unreadableNames.add(containerClassName);
+            }
+        }
+
+        Map<String, String> fingerprints = new HashMap<>();
+        for (Map.Entry<String, StringBuilder> entry : abis.entrySet()) {
+            if (!unreadableNames.contains(entry.getKey())) {
+                fingerprints.put(entry.getKey(), ClassFile.digest(entry.getValue().toString()));
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Collects dependencies between dynamic classes from the constant pools of the compiled classes.
+     * Classes named in the source which declare compile time constants are kept as dependencies as well,
+     * because javac inlines the constants and does not leave a reference to the declaring class.
+     */
+    private Multimap<String, String> collectExactDependencies(Map<String, byte[]> byteCode,
+                                                              SourcesAndDependencies sourcesAndDependencies) {
+        Multimap<String, String> dependencies = HashMultimap.create();
+        Set<String> knownNames = new HashSet<>();
+        Set<String> constantNames = new HashSet<>();
+        for (Map.Entry<String, byte[]> entry : sourcesAndDependencies.classPathByteCode.entrySet()) {
+            collectConstants(entry.getKey(), entry.getValue(), knownNames, constantNames);
+        }
+        for (Map.Entry<String, byte[]> entry : byteCode.entrySet()) {
+            String containerClassName = StringUtils.substringBefore(entry.getKey(), "$");
+            try {
+                ClassFile classFile = ClassFile.parse(entry.getValue());
+                knownNames.add(containerClassName);
+                if (classFile.hasConstants()) {
+                    constantNames.add(containerClassName);
+                }
+                for (String referencedClassName : classFile.getReferencedClasses()) {
+                    String referencedContainerName = StringUtils.substringBefore(referencedClassName, "$");
+                    if (!referencedContainerName.equals(containerClassName)
+                            && sourceProvider.sourceExistsInFileSystem(referencedContainerName)) {
+                        dependencies.put(containerClassName, referencedContainerName);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Unable to read dependencies of " + entry.getKey() + " from byte code, imports are used", e);
+                dependencies.putAll(containerClassName, sourcesAndDependencies.dependencies.get(containerClassName));
+                constantNames.add(containerClassName);
+            }
+        }
+        for (Map.Entry<String, String> entry : sourcesAndDependencies.sourceDependencies.entries()) {
+            // without byte code of the class its constants are unknown
+            if (constantNames.contains(entry.getValue()) || !knownNames.contains(entry.getValue())) {
+                dependencies.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return dependencies;
+    }
+
+    private void collectConstants(String className, byte[] byteCode, Set<String> knownNames, Set<String> constantNames) {
+        String containerClassName = StringUtils.substringBefore(className, "$");
+        try {
+            if (ClassFile.parse(byteCode).hasConstants()) {
+                constantNames.add(containerClassName);
+            }
+            knownNames.add(containerClassName);
+        } catch (IOException e) {
+            constantNames.add(containerClassName);
+        }
+    }
+
+    /**
+     * Retires class loaders which no longer define any loaded class and drops the introspection caches
+     * holding the replaced classes, so the old generations can be garbage collected
+     */
+    private void retireGenerations(Map<String, TimestampClass> removedClasses) {
+        if (removedClasses.isEmpty()) {
+            return;
+        }
+
+        Set<ClassLoader> oldClassLoaders = Collections.newSetFromMap(new IdentityHashMap<ClassLoader, Boolean>());
+        for (TimestampClass removedClass : removedClasses.values()) {
+            Introspector.flushFromCaches(removedClass.clazz);
+            oldClassLoaders.add(removedClass.clazz.getClassLoader());
+        }
+        // a generation may have compiled classes which have not been replaced
+        for (TimestampClass timestampClass : snapshot.get().getClasses().values()) {
+            oldClassLoaders.remove(timestampClass.clazz.getClassLoader());
+        }
+        for (ClassLoader oldClassLoader : oldClassLoaders) {
+            CachedIntrospectionResults.clearClassLoader(oldClassLoader);
+        }
+        generationTracker.retire(oldClassLoaders);
+    }
+
+    private void markVerified(String containerClassName, long generation) {
+        TimestampClass timestampClass = getTimestampClass(containerClassName);
+        if (generation >= 0 && timestampClass != null) {
+            timestampClass.verifiedGeneration = generation;
+        }
+    }
+
+    private void updateSpringContext(Map<String, Class> replacedClasses, Map<String, TimestampClass> removedClasses) {
         if (!refreshing) {
             refreshing = true;
-            applicationContext.refresh();
-            refreshing = false;
+            try {
+                if (!incrementalContextUpdate || !updateSpringContextIncrementally(replacedClasses, removedClasses)) {
+                    applicationContext.refresh();
+                }
+            } finally {
+                refreshing = false;
+            }
+        }
+    }
+
+    private boolean updateSpringContextIncrementally(Map<String, Class> replacedClasses,
+                                                     Map<String, TimestampClass> removedClasses) {
+        if (replacedClasses.isEmpty()) {
+            // classes compiled for the first time, nothing can refer to their previous versions
+            return true;
+        }
+
+        Map<String, Class> previousClasses = new HashMap<>();
+        Set<String> modifiedClassNames = new HashSet<>();
+        for (String className : replacedClasses.keySet()) {
+            TimestampClass previous = removedClasses.get(className);
+            if (previous != null) {
+                previousClasses.put(className, previous.clazz);
+                if (CompilationScope.isModified(sourceProvider, sourceProvider.getSourceFile(className), className, previous)) {
+                    modifiedClassNames.add(className);
+                }
+            }
+        }
+
+        try {
+            // the context creates a new bean factory on each refresh
+            ConfigurableListableBeanFactory currentBeanFactory = applicationContext.getBeanFactory();
+            if (!(currentBeanFactory instanceof DefaultListableBeanFactory)) {
+                return false;
+            }
+            beanFactory = (DefaultListableBeanFactory) currentBeanFactory;
+
+            return new IncrementalContextUpdater(beanFactory, applicationContext)
+                    .update(replacedClasses, previousClasses, modifiedClassNames);
+        } catch (BeansException | IllegalStateException e) {
+            log.warn("Unable to update beans incrementally, context will be refreshed", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return classes defined by the compiler which replace previously loaded versions
+     */
+    private Map<String, Class> getReplacedClasses(Map<String, Class> compiledClasses, CompilationScheduler scheduler,
+                                                  GenerationDraft draft) {
+        Map<String, TimestampClass> removedClasses = draft.getRemoved();
+        Map<String, Class> replacedClasses = new HashMap<>();
+        for (Map.Entry<String, Class> entry : compiledClasses.entrySet()) {
+            if (scheduler.isDefinedByScheduler(entry.getValue())
+                    && removedClasses.containsKey(StringUtils.substringBefore(entry.getKey(), "$"))) {
+                replacedClasses.put(entry.getKey(), entry.getValue());
+            }
         }
+        return replacedClasses;
     }
 
+    /**
+     * Looks up the resource under the root directory. While the change tracker is running the lookup
+     * goes through the file index, so repeated lookups, including the missing ones, do not touch the file system.
+     */
     @Override
     public URL findResource(String name) {
         if (name.startsWith("/"))
             name = name.substring(1);
-        File file = new File(rootDir, name);
-        if (file.exists()) {
-            try {
-                return file.toURI().toURL();
-            } catch (MalformedURLException e) {
-                throw new RuntimeException(e);
-            }
-        } else
-            return null;
+        return sourceProvider.getResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) {
+        URL resource = findResource(name);
+        return resource != null
+                ? Collections.enumeration(Collections.singletonList(resource))
+                : Collections.<URL>emptyEnumeration();
     }
 
+    /**
+     * Resources under the root directory take precedence over the resources of the parent class loader
+     */
     @Override
     public URL getResource(String name) {
         URL resource = findResource(name);
         if (resource != null)
             return resource;
         else
-            return super.getResource(name);
+            return getParentResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> getResources(String name) throws IOException {
+        List<URL> resources = Collections.list(findResources(name));
+        ClassLoader parent = getParent();
+        resources.addAll(Collections.list(parent != null ? parent.getResources(name) : getSystemResources(name)));
+        return Collections.enumeration(resources);
+    }
+
+    private URL getParentResource(String name) {
+        ClassLoader parent = getParent();
+        // super.getResource() would look under the root directory once more
+        return parent != null ? parent.getResource(name) : super.getResource(name);
     }
 
     protected Date getCurrentTimestamp() {
@@ -171,56 +1197,58 @@ public class JavaClassLoader extends URLClassLoader implements ApplicationContex
     }
 
     TimestampClass getTimestampClass(String name) {
-        return compiled.get(name);
+        return snapshot.get().get(name);
     }
 
     /**
      * Wrap each compiled class with TimestampClass
      */
-    private Map<String, TimestampClass> wrapCompiledClasses(Map<String, Class> compiledClasses) {
+    private Map<String, TimestampClass> wrapCompiledClasses(Map<String, Class> compiledClasses,
+                                                            Map<String, SourceFingerprint> fingerprints,
+                                                            GenerationDraft draft) {
         Map<String, TimestampClass> compiledTimestampClasses = new HashMap<>();
 
         for (Map.Entry<String, Class> entry : compiledClasses.entrySet()) {
-            compiledTimestampClasses.put(entry.getKey(), new TimestampClass(entry.getValue(), getCurrentTimestamp()));
+            TimestampClass existingClass = draft.get(entry.getKey());
+            if (existingClass != null && existingClass.clazz == entry.getValue()) {
+                // the class has not been redefined, its fingerprint and verification state are still valid
+                compiledTimestampClasses.put(entry.getKey(), existingClass);
+                continue;
+            }
+
+            TimestampClass timestampClass = new TimestampClass(entry.getValue(), getCurrentTimestamp());
+            timestampClass.fingerprint = fingerprints.get(StringUtils.substringBefore(entry.getKey(), "$"));
+            compiledTimestampClasses.put(entry.getKey(), timestampClass);
         }
 
         return compiledTimestampClasses;
     }
 
     /**
-     * Add dependencies for each class and ALSO add each class to dependent for each dependency
+     * Replace dependencies of each compiled top level class in the dependency graph,
+     * dependent links are updated by the graph
      */
-    private void linkDependencies(Map<String, TimestampClass> compiledTimestampClasses, Multimap<String, String> dependecies) {
-        for (Map.Entry<String, TimestampClass> entry : compiledTimestampClasses.entrySet()) {
-            String className = entry.getKey();
-            TimestampClass timestampClass = entry.getValue();
-
-            Collection<String> dependencyClasses = dependecies.get(className);
-            timestampClass.dependencies.addAll(dependencyClasses);
-
-            for (String dependencyClassName : timestampClass.dependencies) {
-                TimestampClass dependencyClass = compiled.get(dependencyClassName);
-                if (dependencyClass != null) {
-                    dependencyClass.dependent.add(className);
-                }
+    private void linkDependencies(Collection<String> compiledClassNames, Multimap<String, String> dependecies) {
+        for (String className : compiledClassNames) {
+            if (className.indexOf('$') < 0) {
+                dependencyGraph.setDependencies(className, dependecies.get(className));
             }
         }
     }
 
-    private CharSequenceCompiler createCompiler() {
+    CharSequenceCompiler createCompiler(GenerationDraft draft) {
         return new CharSequenceCompiler(
-                proxyClassLoader,
-                Arrays.asList("-classpath", classPath, "-g")
+                proxyClassLoader.forDraft(draft),
+                getCompilerOptions(),
+                compilerPool
         );
     }
 
-    private void unlock(String name) {
-        locks.get(name).unlock();
-    }
-
-    private void lock(String name) {//not sure it's right, but we can not use synchronization here
-        locks.putIfAbsent(name, new ReentrantLock());
-        locks.get(name).lock();
+    /**
+     * The classpath is set by the compiler pool
+     */
+    private List<String> getCompilerOptions() {
+        return Collections.singletonList("-g");
     }
 
     private String buildClasspath() {
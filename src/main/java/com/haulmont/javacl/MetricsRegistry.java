@@ -0,0 +1,30 @@
+package com.haulmont.javacl;
+
+/**
+ * Receives metrics of the class loader, for example to forward them to an application metrics library.
+ * Methods are called on the class loading paths, so they should be fast and must not throw.
+ */
+public interface MetricsRegistry {
+    String LOAD_CLASS = "javacl.loadClass";
+    String CACHE_HIT = "javacl.cacheHit";
+    String PARENT_DELEGATION = "javacl.parentDelegation";
+    String VERIFICATION_TIME = "javacl.verificationTime";
+    String COMPILATION = "javacl.compilation";
+    String COMPILATION_FAILURE = "javacl.compilationFailure";
+    String BYTECODE_CACHE_HIT = "javacl.bytecodeCacheHit";
+    String STALE_HIT = "javacl.staleHit";
+    String JAVAC_RUN = "javacl.javacRun";
+    String COMPILE_TIME = "javacl.compileTime";
+    String RECOMPILE_SET_SIZE = "javacl.recompileSetSize";
+    String CONTEXT_UPDATE_TIME = "javacl.contextUpdateTime";
+
+    /**
+     * Counter increment
+     */
+    void increment(String name);
+
+    /**
+     * Value of a distribution, times are in nanoseconds
+     */
+    void record(String name, long value);
+}
@@ -0,0 +1,92 @@
+package com.haulmont.javacl;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Change tracker for file systems without reliable notifications. The whole tree is scanned
+ * once per interval, no matter how many classes are loaded meanwhile.
+ */
+class PollingChangeTracker extends SourceChangeTracker {
+    private final long intervalMs;
+
+    private Map<Path, FileState> states = new HashMap<>();
+
+    PollingChangeTracker(Path rootPath, long intervalMs) {
+        super(rootPath);
+        this.intervalMs = intervalMs;
+    }
+
+    @Override
+    protected void track() throws Exception {
+        states = scan();
+        ready();
+        while (!Thread.currentThread().isInterrupted()) {
+            Thread.sleep(intervalMs);
+
+            Map<Path, FileState> currentStates = scan();
+            List<Path> changedPaths = new ArrayList<>();
+            for (Map.Entry<Path, FileState> entry : currentStates.entrySet()) {
+                if (!entry.getValue().equals(states.get(entry.getKey()))) {
+                    changedPaths.add(entry.getKey());
+                }
+            }
+            for (Path path : states.keySet()) {
+                if (!currentStates.containsKey(path)) {
+                    changedPaths.add(path);
+                }
+            }
+            states = currentStates;
+            changed(changedPaths);
+        }
+    }
+
+    private Map<Path, FileState> scan() throws IOException {
+        final Map<Path, FileState> result = new HashMap<>();
+        if (!Files.isDirectory(rootPath)) {
+            return result;
+        }
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                result.put(file, new FileState(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+
+    private static class FileState {
+        final long size;
+        final long lastModified;
+
+        FileState(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            FileState that = (FileState) o;
+            return size == that.size && lastModified == that.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (size ^ (size >>> 32)) + (int) (lastModified ^ (lastModified >>> 32));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles all sources under the root directory ahead of the first request.
+ * <p/>
+ * Sources are split into clusters which do not depend on each other, using the same rules as lazy loading:
+ * imported classes and classes of the same package belong to one cluster. Clusters are compiled in parallel.
+ */
+class Precompiler {
+    private static Log log = LogFactory.getLog(Precompiler.class);
+
+    private final JavaClassLoader javaClassLoader;
+    private final ExecutorService executor;
+
+    Precompiler(JavaClassLoader javaClassLoader, ExecutorService executor) {
+        this.javaClassLoader = javaClassLoader;
+        this.executor = executor;
+    }
+
+    /**
+     * Compiles all the clusters and waits for the end of the compilation.
+     * Failed clusters are logged and left for lazy loading.
+     */
+    void precompile() throws InterruptedException {
+        long startTime = System.nanoTime();
+        List<String> classNames = javaClassLoader.sourceProvider.getAllClasses();
+        if (classNames.isEmpty()) {
+            return;
+        }
+
+        final List<List<String>> clusters;
+        try {
+            clusters = partition(classNames);
+        } catch (IOException e) {
+            log.warn("Unable to collect dependencies of dynamic classes, precompilation skipped", e);
+            return;
+        }
+        log.info("Precompiling " + classNames.size() + " classes in " + clusters.size() + " clusters");
+
+        final AtomicInteger finished = new AtomicInteger();
+        List<Future<ReloadResult>> futures = new ArrayList<>();
+        for (final List<String> cluster : clusters) {
+            futures.add(executor.submit(new Callable<ReloadResult>() {
+                @Override
+                public ReloadResult call() throws Exception {
+                    ReloadResult result = javaClassLoader.loadClasses(cluster, false);
+                    log.info("Precompiled cluster " + finished.incrementAndGet() + "/" + clusters.size() + ": " + result);
+                    return result;
+                }
+            }));
+        }
+
+        int failed = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                failed++;
+                log.error("Unable to precompile " + clusters.get(i), e.getCause());
+            }
+        }
+
+        log.info("Precompilation finished in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms"
+                + (failed > 0 ? ", failed clusters: " + failed : ""));
+    }
+
+    /**
+     * @return connected components of the dependency graph built from imports and packages, largest first
+     */
+    private List<List<String>> partition(List<String> classNames) throws IOException {
+        SourcesAndDependencies sourcesAndDependencies = new SourcesAndDependencies(javaClassLoader);
+        for (String className : classNames) {
+            if (!sourcesAndDependencies.sources.containsKey(className)) {
+                sourcesAndDependencies.addSource(className);
+                sourcesAndDependencies.collectDependencies(className);
+            }
+        }
+
+        Map<String, String> parents = new HashMap<>();
+        for (String className : classNames) {
+            parents.put(className, className);
+        }
+        for (Map.Entry<String, String> dependency : sourcesAndDependencies.dependencies.entries()) {
+            union(parents, dependency.getKey(), dependency.getValue());
+        }
+
+        Map<String, List<String>> clusters = new HashMap<>();
+        for (String className : classNames) {
+            String root = find(parents, className);
+            List<String> cluster = clusters.get(root);
+            if (cluster == null) {
+                cluster = new ArrayList<>();
+                clusters.put(root, cluster);
+            }
+            cluster.add(className);
+        }
+
+        List<List<String>> result = new ArrayList<>(clusters.values());
+        Collections.sort(result, new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> cluster1, List<String> cluster2) {
+                return cluster2.size() - cluster1.size();
+            }
+        });
+        return result;
+    }
+
+    private static void union(Map<String, String> parents, String name1, String name2) {
+        String root1 = find(parents, name1);
+        String root2 = find(parents, name2);
+        if (!root1.equals(root2)) {
+            parents.put(root1, root2);
+        }
+    }
+
+    private static String find(Map<String, String> parents, String name) {
+        if (!parents.containsKey(name)) {
+            parents.put(name, name);
+            return name;
+        }
+
+        String root = name;
+        while (!parents.get(root).equals(root)) {
+            root = parents.get(root);
+        }
+        // path compression
+        String current = name;
+        while (!current.equals(root)) {
+            String next = parents.get(current);
+            parents.put(current, root);
+            current = next;
+        }
+        return root;
+    }
+}
@@ -1,58 +1,68 @@
 package com.haulmont.javacl;
 
 
-import java.util.HashMap;
-import java.util.Map;
+import com.haulmont.javacl.compiler.NegativeLookupCache;
 
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parent of the compiler class loaders, serves previously compiled dynamic classes.
+ * Lookups go to the current snapshot without locking. The class loaders of a compilation in progress
+ * get their own proxy which sees the draft of the compilation instead.
+ * <p/>
+ * Names the parent has failed to load are remembered and shared by all the proxies, the parent does not change.
+ */
 public class ProxyClassLoader extends ClassLoader {
-    Map<String, TimestampClass> compiled;
-    ThreadLocal<Map<String, TimestampClass>> removedFromCompilation = new ThreadLocal<Map<String, TimestampClass>>();
+    private final AtomicReference<GenerationSnapshot> snapshot;
+    private final GenerationDraft draft;
+    private final NegativeLookupCache parentMisses;
+
+    ProxyClassLoader(ClassLoader parent, AtomicReference<GenerationSnapshot> snapshot) {
+        this(parent, snapshot, null, new NegativeLookupCache());
+    }
 
-    ProxyClassLoader(ClassLoader parent, Map<String, TimestampClass> compiled) {
+    private ProxyClassLoader(ClassLoader parent, AtomicReference<GenerationSnapshot> snapshot, GenerationDraft draft,
+                             NegativeLookupCache parentMisses) {
         super(parent);
-        this.compiled = compiled;
+        this.snapshot = snapshot;
+        this.draft = draft;
+        this.parentMisses = parentMisses;
+    }
+
+    /**
+     * @return proxy for the class loaders of the compilation, it follows the published snapshot
+     *         once the draft is closed
+     */
+    ProxyClassLoader forDraft(GenerationDraft draft) {
+        return new ProxyClassLoader(getParent(), snapshot, draft, parentMisses);
     }
 
     @Override
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-        TimestampClass tsClass = compiled.get(name);
+        TimestampClass tsClass = get(name);
         if (tsClass != null) {
             return tsClass.clazz;
-        } else {
-            return super.loadClass(name, resolve);
         }
-    }
-
-    public TimestampClass removeFromCache(String className) {
-        Map<String, TimestampClass> removedFromCompilationMap = removedFromCompilation.get();
-        if (removedFromCompilationMap == null) {
-            removedFromCompilationMap = new HashMap<String, TimestampClass>();
-            removedFromCompilation.set(removedFromCompilationMap);
+        if (parentMisses.contains(name)) {
+            throw NegativeLookupCache.miss(name);
         }
-
-        TimestampClass timestampClass = compiled.get(className);
-        if (timestampClass != null) {
-            removedFromCompilationMap.put(className, timestampClass);
-            compiled.remove(className);
-            return timestampClass;
-        }
-
-        return null;
-    }
-
-    public void restoreRemoved() {
-        Map<String, TimestampClass> map = removedFromCompilation.get();
-        if (map != null) {
-            compiled.putAll(map);
+        try {
+            return super.loadClass(name, resolve);
+        } catch (ClassNotFoundException e) {
+            parentMisses.add(name);
+            throw e;
         }
-        removedFromCompilation.remove();
     }
 
-    public void cleanupRemoved() {
-        removedFromCompilation.remove();
+    public boolean contains(String className) {
+        return get(className) != null;
     }
 
-    public boolean contains(String className) {
-        return compiled.containsKey(className);
+    private TimestampClass get(String className) {
+        GenerationDraft draft = this.draft;
+        if (draft != null && !draft.isClosed()) {
+            return draft.get(className);
+        }
+        return snapshot.get().get(className);
     }
 }
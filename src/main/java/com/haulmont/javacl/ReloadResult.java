@@ -0,0 +1,61 @@
+package com.haulmont.javacl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a reload: classes compiled by it and time spent in each phase of the compilation
+ */
+public class ReloadResult {
+    static final String SCOPE_PHASE = "scope";
+    static final String COMPILE_PHASE = "compile";
+    static final String LINK_PHASE = "link";
+    static final String CONTEXT_PHASE = "context";
+
+    private final Set<String> compiledClasses = new TreeSet<>();
+    private final Map<String, Long> phaseTimes = new LinkedHashMap<>();
+    private long phaseStart = System.nanoTime();
+
+    void addCompiledClasses(Collection<String> classNames) {
+        compiledClasses.addAll(classNames);
+    }
+
+    void phaseFinished(String phase) {
+        long now = System.nanoTime();
+        phaseTimes.put(phase, TimeUnit.NANOSECONDS.toMillis(now - phaseStart));
+        phaseStart = now;
+    }
+
+    /**
+     * @return names of the compiled top level classes, including dependent classes compiled together with
+     *         the requested ones
+     */
+    public Set<String> getCompiledClasses() {
+        return Collections.unmodifiableSet(compiledClasses);
+    }
+
+    /**
+     * @return milliseconds spent in each phase, in the order of execution
+     */
+    public Map<String, Long> getPhaseTimes() {
+        return Collections.unmodifiableMap(phaseTimes);
+    }
+
+    public long getTotalTime() {
+        long total = 0;
+        for (Long time : phaseTimes.values()) {
+            total += time;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "compiled " + compiledClasses + " in " + getTotalTime() + " ms " + phaseTimes;
+    }
+}
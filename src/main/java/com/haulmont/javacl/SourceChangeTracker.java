@@ -0,0 +1,151 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks modifications under the root directory in background.
+ * <p/>
+ * Every detected change increments the generation counter, so a class verified at the current generation
+ * does not need its sources to be checked again. Modified sources are kept in the dirty set
+ * until they are compiled.
+ */
+abstract class SourceChangeTracker {
+    private static Log log = LogFactory.getLog(SourceChangeTracker.class);
+
+    protected final Path rootPath;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final ConcurrentMap<String, Long> dirty = new ConcurrentHashMap<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Thread thread;
+    private volatile boolean ready;
+
+    SourceChangeTracker(Path rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    /**
+     * @return true if the tracker has been initialized and is running, so the generation counter can be trusted
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    protected void ready() {
+        ready = true;
+    }
+
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return names of the classes whose sources were modified and have not been compiled since
+     */
+    Set<String> getDirtyClasses() {
+        return new HashSet<>(dirty.keySet());
+    }
+
+    /**
+     * Removes compiled classes from the dirty set, unless they were modified once more after the given generation
+     */
+    void clean(Collection<String> classNames, long compiledGeneration) {
+        for (String className : classNames) {
+            Long modifiedGeneration = dirty.get(className);
+            if (modifiedGeneration != null && modifiedGeneration <= compiledGeneration) {
+                dirty.remove(className, modifiedGeneration);
+            }
+        }
+    }
+
+    void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Registers a batch of changes with one generation increment. Listeners are notified before the increment,
+     * so anyone who sees the new generation sees their updated state as well.
+     */
+    protected void changed(Collection<Path> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        for (ChangeListener listener : listeners) {
+            listener.changed(paths);
+        }
+
+        long currentGeneration = generation.incrementAndGet();
+        for (Path path : paths) {
+            String className = getClassName(path);
+            if (className != null) {
+                dirty.put(className, currentGeneration);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Changes detected: " + paths + ", generation " + currentGeneration);
+        }
+    }
+
+    private String getClassName(Path path) {
+        String relativePath = rootPath.relativize(path).toString();
+        if (!relativePath.endsWith(SourceProvider.JAVA_EXT)) {
+            return null;
+        }
+        return relativePath.substring(0, relativePath.length() - SourceProvider.JAVA_EXT.length())
+                .replace(path.getFileSystem().getSeparator(), ".");
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(getClass().getSimpleName() + "-" + rootPath) {
+            @Override
+            public void run() {
+                try {
+                    track();
+                } catch (InterruptedException e) {
+                    // stopped
+                } catch (Exception e) {
+                    log.error("Source change tracking stopped", e);
+                } finally {
+                    ready = false;
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Main loop of the tracking thread. Should return or throw InterruptedException when the thread is interrupted.
+     */
+    protected abstract void track() throws Exception;
+
+    interface ChangeListener {
+        /**
+         * @param paths created, modified or deleted files and directories
+         */
+        void changed(Collection<Path> paths);
+    }
+}
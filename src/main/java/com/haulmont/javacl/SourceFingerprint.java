@@ -0,0 +1,64 @@
+package com.haulmont.javacl;
+
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Size, modification time and content digest of the source a class was compiled from.
+ * The digest is recalculated only if size or modification time have changed,
+ * so touching a file without changing its content does not cause recompilation.
+ */
+class SourceFingerprint {
+    private long size;
+    private long lastModified;
+    private final String digest;
+
+    SourceFingerprint(long size, long lastModified, String digest) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.digest = digest;
+    }
+
+    static String digest(CharSequence source) {
+        return Hashing.sha1().newHasher().putUnencodedChars(source).hash().toString();
+    }
+
+    /**
+     * Size and modification time should be taken before the source is read,
+     * so a modification made during compilation is detected on the next check.
+     */
+    static SourceFingerprint create(long size, long lastModified, CharSequence source) {
+        return new SourceFingerprint(size, lastModified, digest(source));
+    }
+
+    /**
+     * @return true if the content of the file is the same as the content the fingerprint was taken from
+     */
+    synchronized boolean matches(File srcFile, SourceProvider sourceProvider, String className) {
+        long currentSize = srcFile.length();
+        long currentLastModified = srcFile.lastModified();
+        if (currentSize == size && currentLastModified == lastModified) {
+            return true;
+        }
+
+        String currentDigest;
+        try {
+            currentDigest = digest(sourceProvider.getSource(className));
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (digest.equals(currentDigest)) {
+            size = currentSize;
+            lastModified = currentLastModified;
+            return true;
+        }
+        return false;
+    }
+
+    String getDigest() {
+        return digest;
+    }
+}
@@ -1,27 +1,94 @@
 package com.haulmont.javacl;
 
-import org.apache.commons.io.FileUtils;
-
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 class SourceProvider {
     public static final String JAVA_EXT = ".java";
+    // larger sources are mapped rather than read into the heap, a mapped file may stay locked
+    // on Windows until the buffer is garbage collected, so ordinary sources are read
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+
     private String rootDir;
+    private volatile FileIndex fileIndex;
+    private volatile Charset charset = Charset.defaultCharset();
 
     public SourceProvider(String rootDir) {
         this.rootDir = rootDir;
     }
 
-    public String getSourceString(String name) throws IOException {
+    void setFileIndex(FileIndex fileIndex) {
+        this.fileIndex = fileIndex;
+    }
+
+    void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    private FileIndex getActiveIndex() {
+        FileIndex index = fileIndex;
+        return index != null && index.isActive() ? index : null;
+    }
+
+    /**
+     * Reads the source straight into a char buffer. The compiler uses the array of the buffer as is,
+     * so the buffer should not be modified.
+     */
+    public CharBuffer getSource(String name) throws IOException {
         File srcFile = getSourceFile(name);
         if (!srcFile.exists()) {
             throw new FileNotFoundException("Java source for " + name + " not found");
         }
-        return FileUtils.readFileToString(srcFile);
+        try (FileChannel channel = FileChannel.open(srcFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer bytes;
+            if (size >= MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                    // the file may be truncated while it is read
+                }
+                bytes.flip();
+            }
+            return decode(bytes);
+        }
+    }
+
+    /**
+     * Malformed input is replaced, the same way a reader does
+     */
+    private CharBuffer decode(ByteBuffer bytes) throws CharacterCodingException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // javac copies a buffer which is full to append a sentinel, so one char is spare
+        CharBuffer chars = CharBuffer.allocate((int) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+        CoderResult result = decoder.decode(bytes, chars, true);
+        if (result.isUnderflow()) {
+            result = decoder.flush(chars);
+        }
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        chars.flip();
+        return chars;
     }
 
     public File getSourceFile(String name) {
@@ -32,20 +99,55 @@ class SourceProvider {
 
     public boolean sourceExistsInFileSystem(String className) {
         String path = className.replace('.', '/');
+        FileIndex index = getActiveIndex();
+        if (index != null) {
+            return index.containsFile(path + JAVA_EXT);
+        }
         File file = new File(rootDir, path + JAVA_EXT);
         return file.exists();
     }
 
     public boolean directoryExistsInFileSystem(String packageName) {
         String path = packageName.replace('.', '/');
+        FileIndex index = getActiveIndex();
+        if (index != null) {
+            return index.containsDirectory(path);
+        }
         File dir = new File(rootDir, path);
         return dir.exists();
     }
 
+    /**
+     * @param relativePath path relative to the root directory, separated by '/'
+     * @return URL of the file or directory, null if it does not exist
+     */
+    public URL getResource(String relativePath) {
+        FileIndex index = getActiveIndex();
+        if (index != null) {
+            return index.getUrl(relativePath);
+        }
+        File file = new File(rootDir, relativePath);
+        if (file.exists()) {
+            try {
+                return file.toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            return null;
+        }
+    }
+
     public List<String> getAllClassesFromPackage(String packageName) {
         String path = packageName.replace(".", "/");
-        File srcDir = new File(rootDir, path);
-        String[] fileNames = srcDir.list();
+        FileIndex index = getActiveIndex();
+        List<String> fileNames;
+        if (index != null) {
+            fileNames = index.listFiles(path);
+        } else {
+            String[] files = new File(rootDir, path).list();
+            fileNames = files != null ? Arrays.asList(files) : Collections.<String>emptyList();
+        }
         List<String> classNames = new ArrayList<>();
         for (String fileName : fileNames) {
             if (fileName.endsWith(JAVA_EXT)) {
@@ -54,4 +156,34 @@ class SourceProvider {
         }
         return classNames;
     }
+
+    /**
+     * @return names of all classes under the root directory, sources in the default package are not included
+     */
+    public List<String> getAllClasses() {
+        List<String> classNames = new ArrayList<>();
+        File[] files = new File(rootDir).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    collectClasses(file, file.getName(), classNames);
+                }
+            }
+        }
+        return classNames;
+    }
+
+    private void collectClasses(File dir, String packageName, List<String> classNames) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectClasses(file, packageName + "." + file.getName(), classNames);
+            } else if (file.getName().endsWith(JAVA_EXT)) {
+                classNames.add(packageName + "." + file.getName().replace(JAVA_EXT, ""));
+            }
+        }
+    }
 }
@@ -2,49 +2,66 @@ package com.haulmont.javacl;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.commons.lang.StringUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class SourcesAndDependencies {
-    private static final String IMPORT_PATTERN = "import (.+?);";
-    private static final String IMPORT_STATIC_PATTERN = "import static (.+)\\..+?;";
     public static final String WHOLE_PACKAGE_PLACEHOLDER = ".*";
 
     final Map<String, CharSequence> sources = new HashMap<>();
     final Multimap<String, String> dependencies = HashMultimap.create();
+    // dynamic classes named in the source, javac inlines their compile time constants
+    // without leaving a reference in byte code
+    final Multimap<String, String> sourceDependencies = HashMultimap.create();
+    final Map<String, SourceFingerprint> fingerprints = new HashMap<>();
+    // classes compiled only because they depend on the modified classes
+    final Set<String> dependentNames = new HashSet<>();
+    // byte code of loaded and unmodified classes the sources use, javac reads it instead of their sources
+    final Map<String, byte[]> classPathByteCode = new HashMap<>();
 
     private final SourceProvider sourceProvider;
     private final JavaClassLoader javaClassLoader;
+    private final GenerationDraft draft;
+    private final Map<String, List<String>> packageClasses = new HashMap<>();
+    // the first source of each package, the other sources of the package are linked to it
+    private final Map<String, String> packageSources = new HashMap<>();
 
-    SourcesAndDependencies(String rootDir, JavaClassLoader javaClassLoader) {
-        this.sourceProvider = new SourceProvider(rootDir);
+    SourcesAndDependencies(JavaClassLoader javaClassLoader) {
+        this(javaClassLoader, new GenerationDraft(javaClassLoader.snapshot));
+    }
+
+    /**
+     * @param draft draft of the compilation, classes to recompile are removed from it
+     */
+    SourcesAndDependencies(JavaClassLoader javaClassLoader, GenerationDraft draft) {
+        this.sourceProvider = javaClassLoader.sourceProvider;
         this.javaClassLoader = javaClassLoader;
+        this.draft = draft;
     }
 
-    public void putSource(String name, CharSequence sourceCode) {
-        sources.put(name, sourceCode);
+    public void addSource(String name) throws IOException {
+        putSource(name, readSource(name));
     }
 
     /**
-     * Recursively collects all dependencies for class using imports
+     * Recursively collects the dynamic classes the class uses: imported and same package classes named in its source.
+     * Loaded and unmodified classes are passed to javac as byte code, the others are compiled together with the class.
      *
      * @throws java.io.IOException
      */
     public void collectDependencies(String className) throws IOException {
         CharSequence src = sources.get(className);
-        List<String> importedClassesNames = getDynamicallyLoadedImports(src);
-        String currentPackageName = className.substring(0, className.lastIndexOf('.'));
-        importedClassesNames.addAll(sourceProvider.getAllClassesFromPackage(currentPackageName));//all src from current package
-        for (String importedClassName : importedClassesNames) {
-            if (!sources.containsKey(importedClassName)) {
-                addSource(importedClassName);
-                addDependency(className, importedClassName);
-                collectDependencies(importedClassName);
+        for (String usedClassName : collectSourceDependencies(className, src)) {
+            if (!sources.containsKey(usedClassName) && !addClassPathByteCode(className, usedClassName)) {
+                addSource(usedClassName);
+                addDependency(className, usedClassName);
+                collectDependencies(usedClassName);
             } else {
-                addDependency(className, importedClassName);
+                addDependency(className, usedClassName);
             }
         }
     }
@@ -54,79 +71,272 @@ class SourcesAndDependencies {
      * Decides what to compile using CompilationScope (hierarchical search)
      * Find all classes dependent from those we are going to compile and add them to compilation as well
      */
-    public Map<String, CharSequence> collectSourcesForCompilation(String rootClassName) throws ClassNotFoundException, IOException {
-        Map<String, CharSequence> dependentSources = new HashMap<>();
+    public Map<String, CharSequence> collectSourcesForCompilation(Collection<String> rootClassNames) throws ClassNotFoundException, IOException {
+        for (String rootClassName : rootClassNames) {
+            collectDependent(rootClassName);
+        }
+        // sources needed by the dependents are added meanwhile and checked in turn
+        Set<String> checkedNames = new HashSet<>(dependentNames);
+        List<String> uncheckedNames = new ArrayList<>(sources.keySet());
+        while (!uncheckedNames.isEmpty()) {
+            for (String dependencyClassName : uncheckedNames) {
+                checkedNames.add(dependencyClassName);
+                CompilationScope dependencyCompilationScope = new CompilationScope(javaClassLoader, dependencyClassName);
+                if (dependencyCompilationScope.compilationNeeded()) {
+                    collectDependent(dependencyClassName);
+                }
+            }
+            uncheckedNames = new ArrayList<>(sources.keySet());
+            uncheckedNames.removeAll(checkedNames);
+        }
+
+        // dependents used by the other sources or sharing a package with them are compiled together with them
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (String className : sources.keySet()) {
+                if (!dependentNames.contains(className)) {
+                    changed |= dependentNames.removeAll(dependencies.get(className));
+                }
+            }
+        }
 
-        collectDependent(rootClassName, dependentSources);
-        for (String dependencyClassName : sources.keySet()) {
-            CompilationScope dependencyCompilationScope = new CompilationScope(javaClassLoader, dependencyClassName);
-            if (dependencyCompilationScope.compilationNeeded()) {
-                collectDependent(dependencyClassName, dependentSources);
+        Iterator<String> iterator = classPathByteCode.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (sources.containsKey(StringUtils.substringBefore(iterator.next(), "$"))) {
+                iterator.remove();
             }
         }
-        sources.putAll(dependentSources);
+        // unmodified classes compiled again are replaced as well, so the new classes link to their new versions
+        for (String className : sources.keySet()) {
+            draft.remove(className);
+        }
         return sources;
     }
 
     /**
-     * Find all dependent classes (hierarchical search)
+     * Find all dependent classes (transitive search in the dependency graph)
      */
-    private void collectDependent(String dependencyClassName, Map<String, CharSequence> dependentSources) throws IOException {
-        TimestampClass removedClass = javaClassLoader.proxyClassLoader.removeFromCache(dependencyClassName);
+    private void collectDependent(String dependencyClassName) throws IOException {
+        TimestampClass removedClass = draft.remove(dependencyClassName);
         if (removedClass != null) {
-            for (String dependentName : removedClass.dependent) {
-                dependentSources.put(dependentName, sourceProvider.getSourceString(dependentName));
-                addDependency(dependentName, dependencyClassName);
-                collectDependent(dependentName, dependentSources);
+            DependencyGraph dependencyGraph = javaClassLoader.dependencyGraph;
+            Set<String> dependentNames = dependencyGraph.getTransitiveDependents(dependencyClassName);
+            for (String dependentName : dependentNames) {
+                draft.remove(dependentName);
+                if (!sources.containsKey(dependentName)) {
+                    CharSequence src = readSource(dependentName);
+                    putSource(dependentName, src);
+                    this.dependentNames.add(dependentName);
+                    for (String usedClassName : collectSourceDependencies(dependentName, src)) {
+                        if (!sources.containsKey(usedClassName) && !addClassPathByteCode(dependentName, usedClassName)) {
+                            addSource(usedClassName);
+                            collectDependencies(usedClassName);
+                        }
+                        addDependency(dependentName, usedClassName);
+                    }
+                }
+                for (String name : dependencyGraph.getDependencies(dependentName)) {
+                    if (name.equals(dependencyClassName) || dependentNames.contains(name)) {
+                        addDependency(dependentName, name);
+                    }
+                }
             }
         }
     }
 
+    /**
+     * Remembers imported and same package dynamic classes named in the source as its source dependencies
+     *
+     * @return the named classes and a class of each package imported on demand without naming its classes,
+     *         javac requires such packages to exist
+     */
+    private List<String> collectSourceDependencies(String className, CharSequence src) throws IOException {
+        Set<String> identifiers = getIdentifiers(src);
+        Set<String> classNames = new LinkedHashSet<>();
+        List<String> packageMemberNames = new ArrayList<>();
+        for (String importValue : ImportScanner.scan(new CharSequenceReader(src))) {
+            List<String> importedNames = unwrapImportValue(importValue);
+            boolean named = false;
+            for (String importedName : importedNames) {
+                if (isNamed(importedName, identifiers)) {
+                    classNames.add(importedName);
+                    named = true;
+                }
+            }
+            if (!named && !importedNames.isEmpty()) {
+                packageMemberNames.add(importedNames.get(0));
+            }
+        }
+        int lastDot = className.lastIndexOf('.');
+        if (lastDot > 0) {
+            for (String packageClassName : getPackageClasses(className.substring(0, lastDot))) {
+                if (isNamed(packageClassName, identifiers)) {
+                    classNames.add(packageClassName);
+                }
+            }
+        }
+        classNames.remove(className);
+        sourceDependencies.putAll(className, classNames);
+
+        List<String> result = new ArrayList<>(classNames);
+        packageMemberNames.removeAll(classNames);
+        result.addAll(packageMemberNames);
+        return result;
+    }
+
+    private static boolean isNamed(String className, Set<String> identifiers) {
+        return identifiers.contains(className.substring(className.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Classes of one package compiled together are linked to each other, so one class loader defines them
+     * and they can use package-private members of each other
+     */
+    private void putSource(String className, CharSequence src) {
+        sources.put(className, src);
+        String packageName = getPackageName(className);
+        String packageSource = packageSources.get(packageName);
+        if (packageSource == null) {
+            packageSources.put(packageName, className);
+        } else {
+            addDependency(className, packageSource);
+            addDependency(packageSource, className);
+        }
+    }
+
+    /**
+     * Adds byte code of the loaded class and of the dynamic classes it depends on, unless some of them
+     * is modified or its class loader does not keep the byte code. A class of the same package is compiled
+     * again if it has package-private members, which are not accessible from another class loader.
+     *
+     * @return false if the class has to be compiled from the source
+     */
+    private boolean addClassPathByteCode(String usingClassName, String className) {
+        if (classPathByteCode.containsKey(className)) {
+            return true;
+        }
+        Map<String, byte[]> byteCode = new HashMap<>();
+        Set<String> visitedNames = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(className);
+        while (!queue.isEmpty()) {
+            String name = queue.poll();
+            if (!visitedNames.add(name) || sources.containsKey(name) || classPathByteCode.containsKey(name)) {
+                continue;
+            }
+            Map<String, byte[]> retainedByteCode = javaClassLoader.getRetainedByteCode(name, draft.get(name));
+            if (retainedByteCode == null) {
+                return false;
+            }
+            if (name.equals(className) && getPackageName(usingClassName).equals(getPackageName(className))
+                    && hasPackageAccess(retainedByteCode)) {
+                return false;
+            }
+            byteCode.putAll(retainedByteCode);
+            queue.addAll(javaClassLoader.dependencyGraph.getDependencies(name));
+        }
+        classPathByteCode.putAll(byteCode);
+        return true;
+    }
+
+    private List<String> getPackageClasses(String packageName) {
+        List<String> classNames = packageClasses.get(packageName);
+        if (classNames == null) {
+            classNames = sourceProvider.getAllClassesFromPackage(packageName);
+            packageClasses.put(packageName, classNames);
+        }
+        return classNames;
+    }
+
     private void addDependency(String dependent, String dependency) {
         if (!dependent.equals(dependency)) {
             dependencies.put(dependent, dependency);
         }
     }
 
-    private void addSource(String importedClassName) throws IOException {
-        sources.put(importedClassName, sourceProvider.getSourceString(importedClassName));
+    /**
+     * Reads the source and, in content fingerprint mode, remembers what exactly is going to be compiled
+     */
+    private CharSequence readSource(String className) throws IOException {
+        if (!javaClassLoader.contentFingerprints) {
+            return sourceProvider.getSource(className);
+        }
+
+        File srcFile = sourceProvider.getSourceFile(className);
+        long size = srcFile.length();
+        long lastModified = srcFile.lastModified();
+        CharSequence src = sourceProvider.getSource(className);
+        fingerprints.put(className, SourceFingerprint.create(size, lastModified, src));
+        return src;
     }
 
     private List<String> unwrapImportValue(String importValue) {
         if (importValue.endsWith(WHOLE_PACKAGE_PLACEHOLDER)) {
-            String packageName = importValue.replace(WHOLE_PACKAGE_PLACEHOLDER, "");
+            String packageName = importValue.substring(0, importValue.length() - WHOLE_PACKAGE_PLACEHOLDER.length());
             if (sourceProvider.directoryExistsInFileSystem(packageName)) {
                 return sourceProvider.getAllClassesFromPackage(packageName);
             }
-        } else if (sourceProvider.sourceExistsInFileSystem(importValue)) {
-            return Collections.singletonList(importValue);
+            //nested classes of a dynamic class
+            return sourceProvider.sourceExistsInFileSystem(packageName)
+                    ? Collections.singletonList(packageName)
+                    : Collections.<String>emptyList();
         }
 
+        if (sourceProvider.sourceExistsInFileSystem(importValue)) {
+            return Collections.singletonList(importValue);
+        }
+        //nested classes are imported as Outer.Inner, the source belongs to the outer class
+        int lastDot = importValue.lastIndexOf('.');
+        if (lastDot > 0) {
+            String outerClassName = importValue.substring(0, lastDot);
+            if (sourceProvider.sourceExistsInFileSystem(outerClassName)) {
+                return Collections.singletonList(outerClassName);
+            }
+        }
         return Collections.emptyList();
     }
 
-    private List<String> getDynamicallyLoadedImports(CharSequence src) {
-        List<String> importedClassNames = new ArrayList<>();
-
-        List<String> importValues = getMatchedStrings(src, IMPORT_PATTERN, 1);
-        for (String importValue : importValues) {
-            importedClassNames.addAll(unwrapImportValue(importValue));
+    /**
+     * @return true if the byte code of a class or of its member classes has package-private parts,
+     *         anonymous and local classes are not accessible by name and are skipped
+     */
+    private static boolean hasPackageAccess(Map<String, byte[]> byteCode) {
+        for (Map.Entry<String, byte[]> entry : byteCode.entrySet()) {
+            String simpleName = StringUtils.substringAfterLast(entry.getKey(), "$");
+            if (!simpleName.isEmpty() && Character.isDigit(simpleName.charAt(0))) {
+                continue;
+            }
+            try {
+                if (ClassFile.parse(entry.getValue()).hasPackageAccess()) {
+                    return true;
+                }
+            } catch (IOException e) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        importValues = getMatchedStrings(src, IMPORT_STATIC_PATTERN, 1);
-        for (String importValue : importValues) {
-            importedClassNames.addAll(unwrapImportValue(importValue));
-        }
-        return importedClassNames;
+    static String getPackageName(String className) {
+        int lastDot = className.lastIndexOf('.');
+        return lastDot > 0 ? className.substring(0, lastDot) : "";
     }
 
-    private List<String> getMatchedStrings(CharSequence source, String pattern, int groupNumber) {
-        ArrayList<String> result = new ArrayList<>();
-        Pattern importPattern = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-        Matcher matcher = importPattern.matcher(source);
-        while (matcher.find()) {
-            result.add(matcher.group(groupNumber));
+    private static Set<String> getIdentifiers(CharSequence src) {
+        Set<String> identifiers = new HashSet<>();
+        int start = -1;
+        for (int i = 0; i <= src.length(); i++) {
+            char c = i < src.length() ? src.charAt(i) : ' ';
+            if (start < 0) {
+                if (Character.isJavaIdentifierStart(c)) {
+                    start = i;
+                }
+            } else if (!Character.isJavaIdentifierPart(c)) {
+                identifiers.add(src.subSequence(start, i).toString());
+                start = -1;
+            }
         }
-        return result;
+        return identifiers;
     }
 }
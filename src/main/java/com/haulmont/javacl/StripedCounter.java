@@ -0,0 +1,28 @@
+package com.haulmont.javacl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for hot paths. Threads increment different cells, each cell takes its own cache line,
+ * so concurrent increments do not contend. The value is the sum of the cells.
+ */
+class StripedCounter {
+    private static final int STRIPES = 16;
+    // 8 longs per cell, a cache line is 64 bytes
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void increment() {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.incrementAndGet(stripe * PADDING);
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,115 @@
+package com.haulmont.javacl;
+
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of reentrant locks, a name is mapped to one of them by hash.
+ * Memory does not depend on the number of names and nothing is allocated on lock.
+ * <p/>
+ * Different names may share a lock, so the number of stripes should be sized
+ * using the contention counter.
+ */
+class StripedLock {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong contentions = new AtomicLong();
+
+    StripedLock(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Number of stripes should be positive: " + stripes);
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    void lock(String name) {
+        ReentrantLock lock = getLock(name);
+        acquisitions.incrementAndGet();
+        if (!lock.tryLock()) {
+            contentions.incrementAndGet();
+            lock.lock();
+        }
+    }
+
+    /**
+     * @return false if the lock of the name is held by another thread
+     */
+    boolean tryLock(String name) {
+        acquisitions.incrementAndGet();
+        if (getLock(name).tryLock()) {
+            return true;
+        }
+        contentions.incrementAndGet();
+        return false;
+    }
+
+    void unlock(String name) {
+        getLock(name).unlock();
+    }
+
+    /**
+     * Locks the stripes of all the names in the order of their indexes, so threads locking
+     * overlapping sets of names cannot deadlock each other
+     */
+    void lockAll(Collection<String> names) {
+        for (int index : getIndexes(names)) {
+            acquisitions.incrementAndGet();
+            if (!locks[index].tryLock()) {
+                contentions.incrementAndGet();
+                locks[index].lock();
+            }
+        }
+    }
+
+    void unlockAll(Collection<String> names) {
+        for (int index : getIndexes(names)) {
+            locks[index].unlock();
+        }
+    }
+
+    private SortedSet<Integer> getIndexes(Collection<String> names) {
+        SortedSet<Integer> indexes = new TreeSet<>();
+        for (String name : names) {
+            indexes.add(getIndex(name));
+        }
+        return indexes;
+    }
+
+    private ReentrantLock getLock(String name) {
+        return locks[getIndex(name)];
+    }
+
+    private int getIndex(String name) {
+        int hash = name.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & mask;
+    }
+
+    int getStripes() {
+        return locks.length;
+    }
+
+    long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    /**
+     * @return number of acquisitions that had to wait for another thread
+     */
+    long getContentionCount() {
+        return contentions.get();
+    }
+}
@@ -1,14 +1,14 @@
 package com.haulmont.javacl;
 
-import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
 
 class TimestampClass {
     Class clazz;
     Date timestamp;
-    Collection<String> dependencies = new HashSet<>();
-    Collection<String> dependent= new HashSet<>();
+    SourceFingerprint fingerprint;
+    // digest of the ABI of a top level class and its nested classes, set in ABI fingerprint mode
+    String abiFingerprint;
+    volatile long verifiedGeneration = -1;
 
     TimestampClass(Class clazz, Date timestamp) {
         this.clazz = clazz;
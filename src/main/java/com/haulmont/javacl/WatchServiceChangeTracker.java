@@ -0,0 +1,94 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Change tracker based on file system notifications
+ */
+class WatchServiceChangeTracker extends SourceChangeTracker {
+    private static final long BATCH_DELAY_MS = 50;
+
+    private static Log log = LogFactory.getLog(WatchServiceChangeTracker.class);
+
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+
+    WatchServiceChangeTracker(Path rootPath) {
+        super(rootPath);
+    }
+
+    @Override
+    protected void track() throws Exception {
+        try (WatchService watchService = rootPath.getFileSystem().newWatchService()) {
+            registerTree(watchService, rootPath);
+            ready();
+
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Path> changedPaths = new ArrayList<>();
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    processEvents(watchService, key, changedPaths);
+                    key = watchService.poll(BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+                changed(changedPaths);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void processEvents(WatchService watchService, WatchKey key, List<Path> changedPaths) throws IOException {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                log.debug("Events lost, generation is incremented without exact changes");
+                changedPaths.add(rootPath);
+                continue;
+            }
+
+            Path path = dir.resolve((Path) event.context());
+            changedPaths.add(path);
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                registerTree(watchService, path);
+                addTree(path, changedPaths);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    private void registerTree(final WatchService watchService, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Files may be created in a new directory before it is registered
+     */
+    private void addTree(Path start, final List<Path> changedPaths) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                changedPaths.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -1,20 +1,29 @@
 package com.haulmont.javacl.compiler;
 
 import com.haulmont.javacl.ProxyClassLoader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import javax.tools.*;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class CharSequenceCompiler<T> {
+    private static Log log = LogFactory.getLog(CharSequenceCompiler.class);
+
     // Compiler requires source files with a ".java" extension:
     static final String JAVA_EXTENSION = ".java";
 
@@ -32,6 +41,13 @@ public class CharSequenceCompiler<T> {
     // The FileManager which will store source and class "files".
     private final FileManagerImpl javaFileManager;
 
+    // The pool the standard file manager is borrowed from, if any.
+    private final CompilerPool compilerPool;
+    private CompilerPool.PooledFileManager pooledFileManager;
+
+    // Classes added with addClassPathClasses(), they are sent to compile workers
+    private final Map<String, byte[]> classPathByteCode = new HashMap<String, byte[]>();
+
     /**
      * Construct a new instance which delegates to the named class loader.
      *
@@ -53,13 +69,66 @@ public class CharSequenceCompiler<T> {
                 null, null);
         // create our FileManager which chains to the default file manager
         // and our ClassLoader
-        javaFileManager = new FileManagerImpl(fileManager, classLoader);
-        this.options = new ArrayList<String>();
+        javaFileManager = new FileManagerImpl(fileManager, classLoader, null);
+        compilerPool = null;
+        this.options = copyOptions(options);
+    }
+
+    /**
+     * Construct a new instance which uses the compiler and a standard file manager from the pool.
+     * The file manager should be returned to the pool with {@link #release()} after compilation.
+     *
+     * @param loader       the application ClassLoader. The compiler will look through to
+     *                     this class loader for dependent classes
+     * @param options      The compiler options, the classpath is taken from the pool
+     * @param compilerPool the pool which keeps the compiler and file managers warm between compilations
+     * @throws IllegalStateException if the Java compiler cannot be loaded.
+     */
+    public CharSequenceCompiler(ProxyClassLoader loader, Iterable<String> options, CompilerPool compilerPool) {
+        this.compiler = compilerPool.getCompiler();
+        this.compilerPool = compilerPool;
+        classLoader = new ClassLoaderImpl(loader);
+        diagnostics = new DiagnosticCollector<JavaFileObject>();
+        pooledFileManager = compilerPool.borrow();
+        javaFileManager = new FileManagerImpl(pooledFileManager.fileManager, classLoader,
+                pooledFileManager.classPath.index);
+        this.options = copyOptions(options);
+    }
+
+    /**
+     * Construct an instance for a compile worker. It produces byte code only, the classes
+     * cannot be loaded as there is no application class loader.
+     */
+    CharSequenceCompiler(Iterable<String> options, CompilerPool compilerPool) {
+        this.compiler = compilerPool.getCompiler();
+        this.compilerPool = compilerPool;
+        classLoader = new ClassLoaderImpl(null);
+        diagnostics = new DiagnosticCollector<JavaFileObject>();
+        pooledFileManager = compilerPool.borrow();
+        javaFileManager = new FileManagerImpl(pooledFileManager.fileManager, classLoader,
+                pooledFileManager.classPath.index);
+        this.options = copyOptions(options);
+    }
+
+    private static List<String> copyOptions(Iterable<String> options) {
+        List<String> result = new ArrayList<String>();
         if (options != null) { // make a save copy of input options
             for (String option : options) {
-                this.options.add(option);
+                result.add(option);
             }
         }
+        return result;
+    }
+
+    /**
+     * Return the standard file manager to the pool. The instance should not be used for compilation after that,
+     * although compiled classes stay available.
+     */
+    public synchronized void release() {
+        if (pooledFileManager != null) {
+            compilerPool.release(pooledFileManager);
+            pooledFileManager = null;
+        }
     }
 
     /**
@@ -122,6 +191,69 @@ public class CharSequenceCompiler<T> {
             final Map<String, CharSequence> classes,
             final DiagnosticCollector<JavaFileObject> diagnosticsList)
             throws CharSequenceCompilerException {
+        if (compilerPool != null && pooledFileManager == null) {
+            throw new IllegalStateException("File manager has already been released");
+        }
+        if (!compileWithWorker(classes)) {
+            runJavac(classes);
+        }
+        try {
+            // For each class name in the input map, get its compiled
+            // class and put it in the output map
+            Map<String, Class<T>> compiled = new HashMap<String, Class<T>>();
+            for (String qualifiedClassName : classLoader.classNames()) {
+                final Class<T> newClass = loadClass(qualifiedClassName);
+                compiled.put(qualifiedClassName, newClass);
+            }
+            return compiled;
+        } catch (ClassNotFoundException e) {
+            throw new CharSequenceCompilerException(classes.keySet(), e, diagnostics);
+        } catch (IllegalArgumentException e) {
+            throw new CharSequenceCompilerException(classes.keySet(), e, diagnostics);
+        } catch (SecurityException e) {
+            throw new CharSequenceCompilerException(classes.keySet(), e, diagnostics);
+        }
+    }
+
+    /**
+     * Compile the sources without loading the classes, used by compile workers.
+     *
+     * @return byte code of the generated classes, keyed by qualified class name
+     */
+    synchronized Map<String, byte[]> compileToByteCode(final Map<String, CharSequence> classes)
+            throws CharSequenceCompilerException {
+        if (compilerPool != null && pooledFileManager == null) {
+            throw new IllegalStateException("File manager has already been released");
+        }
+        runJavac(classes);
+        return classLoader.byteCode();
+    }
+
+    /**
+     * Sends the sources to a compile worker if the pool has workers and stores the returned byte code
+     * in the class loader.
+     *
+     * @return false if there are no workers or they have failed, so the sources should be compiled in process
+     */
+    private boolean compileWithWorker(Map<String, CharSequence> classes) throws CharSequenceCompilerException {
+        CompileWorkerPool workerPool = compilerPool != null ? compilerPool.getWorkerPool() : null;
+        if (workerPool == null) {
+            return false;
+        }
+        Map<String, byte[]> byteCode;
+        try {
+            byteCode = workerPool.compile(pooledFileManager.classPath.value, options, classes, classPathByteCode);
+        } catch (IOException e) {
+            log.warn("Compile worker failed, compiling in process", e);
+            return false;
+        }
+        for (Map.Entry<String, byte[]> entry : byteCode.entrySet()) {
+            classLoader.add(entry.getKey(), new JavaFileObjectImpl(entry.getKey(), entry.getValue()));
+        }
+        return true;
+    }
+
+    private void runJavac(Map<String, CharSequence> classes) throws CharSequenceCompilerException {
         List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
         for (Map.Entry<String, CharSequence> entry : classes.entrySet()) {
             String qualifiedClassName = entry.getKey();
@@ -142,35 +274,125 @@ public class CharSequenceCompiler<T> {
                         className + JAVA_EXTENSION, source);
             }
         }
-        // Get a CompliationTask from the compiler and compile the sources
-        final JavaCompiler.CompilationTask task = compiler.getTask(null, javaFileManager, diagnostics,
-                options, null, sources);
-        final Boolean result = task.call();
-        if (result == null || !result) {
-            StringBuilder cause = new StringBuilder("\n");
-            for (Diagnostic d : diagnostics.getDiagnostics()) {
-                cause.append(d).append(" ");
+        try {
+            // Get a CompliationTask from the compiler and compile the sources
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, javaFileManager, diagnostics,
+                    options, null, sources);
+            final Boolean result = task.call();
+            if (result == null || !result) {
+                // diagnostics read source lines lazily, so they are formatted before the text is released
+                StringBuilder cause = new StringBuilder("\n");
+                for (Diagnostic d : diagnostics.getDiagnostics()) {
+                    cause.append(d).append(" ");
 
+                }
+                throw new CharSequenceCompilerException("Compilation failed. Causes: " + cause, classes
+                        .keySet(), diagnostics);
             }
-            throw new CharSequenceCompilerException("Compilation failed. Causes: " + cause, classes
-                    .keySet(), diagnostics);
+        } finally {
+            for (JavaFileObject source : sources) {
+                ((JavaFileObjectImpl) source).releaseSource();
+            }
+        }
+    }
+
+    /**
+     * Define classes from byte code produced by an earlier compilation, without invoking javac.
+     *
+     * @param byteCode A Map whose keys are qualified class names and whose values are
+     *                 the class file contents.
+     * @return A mapping of qualified class names to their corresponding classes.
+     * @throws CharSequenceCompilerException if some of the classes cannot be defined
+     */
+    public synchronized Map<String, Class<T>> defineClasses(final Map<String, byte[]> byteCode)
+            throws CharSequenceCompilerException {
+        for (Map.Entry<String, byte[]> entry : byteCode.entrySet()) {
+            classLoader.add(entry.getKey(), new JavaFileObjectImpl(entry.getKey(), entry.getValue()));
         }
         try {
-            // For each class name in the input map, get its compiled
-            // class and put it in the output map
-            Map<String, Class<T>> compiled = new HashMap<String, Class<T>>();
-            for (String qualifiedClassName : classLoader.classNames()) {
-                final Class<T> newClass = loadClass(qualifiedClassName);
-                compiled.put(qualifiedClassName, newClass);
+            Map<String, Class<T>> defined = new HashMap<String, Class<T>>();
+            for (String qualifiedClassName : byteCode.keySet()) {
+                defined.put(qualifiedClassName, loadClass(qualifiedClassName));
             }
-            return compiled;
+            return defined;
         } catch (ClassNotFoundException e) {
-            throw new CharSequenceCompilerException(classes.keySet(), e, diagnostics);
-        } catch (IllegalArgumentException e) {
-            throw new CharSequenceCompilerException(classes.keySet(), e, diagnostics);
-        } catch (SecurityException e) {
-            throw new CharSequenceCompilerException(classes.keySet(), e, diagnostics);
+            throw new CharSequenceCompilerException(byteCode.keySet(), e, null);
+        } catch (LinkageError e) {
+            throw new CharSequenceCompilerException(byteCode.keySet(), e, null);
+        }
+    }
+
+    /**
+     * Make already compiled classes visible to the compiler as if they were on the classpath.
+     * The classes themselves should be loadable through the parent class loader.
+     *
+     * @param byteCode A Map whose keys are qualified class names and whose values are
+     *                 the class file contents.
+     */
+    public synchronized void addClassPathClasses(final Map<String, byte[]> byteCode) {
+        for (Map.Entry<String, byte[]> entry : byteCode.entrySet()) {
+            String qualifiedClassName = entry.getKey();
+            final int dotPos = qualifiedClassName.lastIndexOf('.');
+            final String className = dotPos == -1 ? qualifiedClassName
+                    : qualifiedClassName.substring(dotPos + 1);
+            final String packageName = dotPos == -1 ? "" : qualifiedClassName
+                    .substring(0, dotPos);
+            javaFileManager.putFileForInput(StandardLocation.CLASS_PATH, packageName,
+                    className + JavaFileObject.Kind.CLASS.extension,
+                    new JavaFileObjectImpl(qualifiedClassName, entry.getValue()));
         }
+        classPathByteCode.putAll(byteCode);
+    }
+
+    /**
+     * Drop the byte code of the generated classes, they stay loadable if they have already been defined.
+     * Byte code is not available from {@link #getByteCode()} after that.
+     *
+     * @param keepCompressed keep a compressed copy for getResourceAsStream and for classes defined later
+     */
+    public synchronized void releaseByteCode(boolean keepCompressed) {
+        classLoader.releaseByteCode(keepCompressed);
+    }
+
+    /**
+     * @return approximate number of bytes of byte code retained by the class loader which defined the class,
+     *         0 if the class has not been defined by a compiler
+     */
+    public static long getRetainedSize(Class<?> clazz) {
+        ClassLoader loader = clazz.getClassLoader();
+        return loader instanceof ClassLoaderImpl ? ((ClassLoaderImpl) loader).retainedSize(clazz.getName()) : 0;
+    }
+
+    /**
+     * @return names of the classes compiled or defined by the class loader of a compiler
+     */
+    public static List<String> getClassNames(ClassLoader loader) {
+        return loader instanceof ClassLoaderImpl
+                ? new ArrayList<String>(((ClassLoaderImpl) loader).classNames())
+                : new ArrayList<String>();
+    }
+
+    /**
+     * @return byte code of a class retained by the class loader of a compiler,
+     *         null if it has been released or the class has not been defined by a compiler
+     */
+    public static byte[] getByteCode(ClassLoader loader, String qualifiedClassName) {
+        return loader instanceof ClassLoaderImpl ? ((ClassLoaderImpl) loader).byteCode(qualifiedClassName) : null;
+    }
+
+    /**
+     * @return approximate number of bytes of byte code retained by the class loader of a compiler
+     */
+    public static long getRetainedSize(ClassLoader loader) {
+        return loader instanceof ClassLoaderImpl ? ((ClassLoaderImpl) loader).retainedSize() : 0;
+    }
+
+    /**
+     * @return byte code of the classes generated (or defined) by this instance, keyed by
+     *         qualified class name
+     */
+    public Map<String, byte[]> getByteCode() {
+        return classLoader.byteCode();
     }
 
     /**
@@ -250,11 +472,18 @@ public class CharSequenceCompiler<T> {
  * prevent garbage collection of class byte code.)
  */
 final class JavaFileObjectImpl extends SimpleJavaFileObject {
-    // If kind == CLASS, this stores byte code from openOutputStream
-    private ByteArrayOutputStream byteCode;
+    // If kind == CLASS, this stores byte code written to openOutputStream
+    private volatile byte[] byteCode;
+
+    // the stream javac writes byte code to, until it is closed
+    private volatile ByteArrayOutputStream output;
 
-    // if kind == SOURCE, this contains the source text
-    private final CharSequence source;
+    // compressed copy of the byte code which is kept after the byte code has been released
+    private volatile byte[] compressedByteCode;
+    private volatile int byteCodeLength;
+
+    // if kind == SOURCE, this contains the source text until it is released
+    private volatile CharSequence source;
 
     Class definedClass;
 
@@ -282,16 +511,31 @@ final class JavaFileObjectImpl extends SimpleJavaFileObject {
     }
 
     /**
-     * Return the source code content
+     * Construct a new instance which stores already compiled byte code
+     *
+     * @param name     the qualified class name
+     * @param byteCode the class file contents
+     */
+    JavaFileObjectImpl(final String name, final byte[] byteCode) {
+        this(name, Kind.CLASS);
+        this.byteCode = byteCode;
+    }
+
+    /**
+     * Return the source code content. A char buffer is returned as a duplicate: javac reads its array
+     * without copying, but compacts and flips the buffer it gets.
      *
      * @see javax.tools.SimpleJavaFileObject#getCharContent(boolean)
      */
     @Override
     public CharSequence getCharContent(final boolean ignoreEncodingErrors)
-            throws UnsupportedOperationException {
-        if (source == null)
-            throw new UnsupportedOperationException("getCharContent()");
-        return source;
+            throws IOException {
+        CharSequence currentSource = source;
+        if (currentSource == null)
+            throw new IOException("Source of " + getName() + " has been released");
+        if (currentSource instanceof CharBuffer)
+            return ((CharBuffer) currentSource).duplicate();
+        return currentSource;
     }
 
     /**
@@ -300,25 +544,118 @@ final class JavaFileObjectImpl extends SimpleJavaFileObject {
      * @see javax.tools.SimpleJavaFileObject#openInputStream()
      */
     @Override
-    public InputStream openInputStream() {
-        return new ByteArrayInputStream(getByteCode());
+    public InputStream openInputStream() throws IOException {
+        byte[] currentByteCode = getByteCode();
+        if (currentByteCode == null)
+            throw new IOException("Byte code of " + getName() + " has been released");
+        return new ByteArrayInputStream(currentByteCode);
     }
 
     /**
-     * Return an output stream for writing the bytecode
+     * Return an output stream for writing the bytecode. The written byte code is trimmed
+     * to its size when the stream is closed.
      *
      * @see javax.tools.SimpleJavaFileObject#openOutputStream()
      */
     @Override
     public OutputStream openOutputStream() {
-        byteCode = new ByteArrayOutputStream();
-        return byteCode;
+        byteCode = null;
+        output = new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                byteCode = toByteArray();
+                output = null;
+            }
+        };
+        return output;
     }
 
     /**
-     * @return the byte code generated by the compiler
+     * @return the byte code generated by the compiler, null if it has been released without a compressed copy
      */
     byte[] getByteCode() {
-        return byteCode.toByteArray();
+        byte[] currentByteCode = byteCode;
+        if (currentByteCode != null)
+            return currentByteCode;
+        ByteArrayOutputStream currentOutput = output;
+        if (currentOutput != null)
+            return currentOutput.toByteArray();
+        byte[] compressed = compressedByteCode;
+        if (compressed != null)
+            return inflate(compressed, byteCodeLength);
+        return null;
+    }
+
+    /**
+     * Drop the byte code, optionally keeping a compressed copy which is inflated on demand
+     */
+    void releaseByteCode(boolean keepCompressed) {
+        byte[] currentByteCode = byteCode;
+        if (currentByteCode == null)
+            return;
+        if (keepCompressed) {
+            byteCodeLength = currentByteCode.length;
+            compressedByteCode = deflate(currentByteCode);
+        }
+        byteCode = null;
+    }
+
+    /**
+     * Drop the source text, it is not needed after the compiler has parsed it
+     */
+    void releaseSource() {
+        source = null;
+    }
+
+    /**
+     * @return approximate number of bytes of byte code and source text held by this instance
+     */
+    long getRetainedSize() {
+        long size = 0;
+        byte[] currentByteCode = byteCode;
+        if (currentByteCode != null)
+            size += currentByteCode.length;
+        byte[] compressed = compressedByteCode;
+        if (compressed != null)
+            size += compressed.length;
+        CharSequence currentSource = source;
+        if (currentSource != null)
+            size += 2L * currentSource.length();
+        return size;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                offset += inflater.inflate(data, offset, length - offset);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted compressed byte code", e);
+        } finally {
+            inflater.end();
+        }
     }
 }
@@ -10,10 +10,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 final class ClassLoaderImpl extends ClassLoader {
-    private final Map<String, JavaFileObject> classes = new HashMap<String, JavaFileObject>();
+    private final Map<String, JavaFileObject> classes = new ConcurrentHashMap<String, JavaFileObject>();
     private final ProxyClassLoader proxyClassLoader;
+    // names found neither here nor by Class.forName(), valid while no classes are added
+    private final NegativeLookupCache missingClasses = new NegativeLookupCache();
 
     ClassLoaderImpl(final ProxyClassLoader proxyClassLoader) {
         super(proxyClassLoader);
@@ -32,6 +35,44 @@ final class ClassLoaderImpl extends ClassLoader {
         return Collections.unmodifiableCollection(classes.keySet());
     }
 
+    Map<String, byte[]> byteCode() {
+        Map<String, byte[]> result = new HashMap<String, byte[]>();
+        for (Map.Entry<String, JavaFileObject> entry : classes.entrySet()) {
+            byte[] byteCode = ((JavaFileObjectImpl) entry.getValue()).getByteCode();
+            if (byteCode != null) {
+                result.put(entry.getKey(), byteCode);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return byte code of the class, null if it is not defined by this class loader or has been released
+     */
+    byte[] byteCode(String qualifiedClassName) {
+        JavaFileObjectImpl file = (JavaFileObjectImpl) classes.get(qualifiedClassName);
+        return file != null ? file.getByteCode() : null;
+    }
+
+    void releaseByteCode(boolean keepCompressed) {
+        for (JavaFileObject file : classes.values()) {
+            ((JavaFileObjectImpl) file).releaseByteCode(keepCompressed);
+        }
+    }
+
+    long retainedSize(String qualifiedClassName) {
+        JavaFileObjectImpl file = (JavaFileObjectImpl) classes.get(qualifiedClassName);
+        return file != null ? file.getRetainedSize() : 0;
+    }
+
+    long retainedSize() {
+        long size = 0;
+        for (JavaFileObject file : classes.values()) {
+            size += ((JavaFileObjectImpl) file).getRetainedSize();
+        }
+        return size;
+    }
+
     @Override
     protected Class<?> findClass(final String qualifiedClassName)
             throws ClassNotFoundException {
@@ -43,11 +84,17 @@ final class ClassLoaderImpl extends ClassLoader {
             } else {
 
                 byte[] bytes = castedFile.getByteCode();
+                if (bytes == null) {
+                    throw new ClassNotFoundException(qualifiedClassName + ", byte code has been released");
+                }
                 Class<?> justDefinedClass = defineClass(qualifiedClassName, bytes, 0, bytes.length);
                 castedFile.definedClass = justDefinedClass;
                 return justDefinedClass;
             }
         }
+        if (missingClasses.contains(qualifiedClassName)) {
+            throw NegativeLookupCache.miss(qualifiedClassName);
+        }
         // Workaround for "feature" in Java 6
         // see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6434149
         try {
@@ -56,7 +103,8 @@ final class ClassLoaderImpl extends ClassLoader {
         } catch (ClassNotFoundException nf) {
             // Ignore and fall through
         }
-        return super.findClass(qualifiedClassName);
+        missingClasses.add(qualifiedClassName);
+        throw NegativeLookupCache.miss(qualifiedClassName);
     }
 
     /**
@@ -67,6 +115,7 @@ final class ClassLoaderImpl extends ClassLoader {
      */
     void add(final String qualifiedClassName, final JavaFileObject javaFile) {
         classes.put(qualifiedClassName, javaFile);
+        missingClasses.remove(qualifiedClassName);
     }
 
     @Override
@@ -95,8 +144,9 @@ final class ClassLoaderImpl extends ClassLoader {
             String qualifiedClassName = name.substring(0,
                     name.length() - ".class".length()).replace('/', '.');
             JavaFileObjectImpl file = (JavaFileObjectImpl) classes.get(qualifiedClassName);
-            if (file != null) {
-                return new ByteArrayInputStream(file.getByteCode());
+            byte[] byteCode = file != null ? file.getByteCode() : null;
+            if (byteCode != null) {
+                return new ByteArrayInputStream(byteCode);
             }
         }
         return super.getResourceAsStream(name);
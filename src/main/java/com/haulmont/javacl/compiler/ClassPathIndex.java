@@ -0,0 +1,293 @@
+package com.haulmont.javacl.compiler;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.tools.JavaFileObject;
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the class and source files on the compiler classpath by package. It is built on the first lookup
+ * and shared by all compilations with the same classpath, so javac package listings do not walk
+ * directories and jars again.
+ * <p/>
+ * Jars referenced by the Class-Path manifest attribute are indexed as well, the same way javac does.
+ * The jars stay open while the index is reachable. Changes in classpath directories are not seen
+ * until the classpath of the pool is changed.
+ */
+final class ClassPathIndex {
+    private static Log log = LogFactory.getLog(ClassPathIndex.class);
+
+    private final List<File> files;
+
+    private volatile Map<String, List<IndexedFileObject>> packages;
+
+    ClassPathIndex(List<File> files) {
+        this.files = files;
+    }
+
+    /**
+     * @return files of the package in the classpath order, with subpackages if <var>recurse</var> is set
+     */
+    List<JavaFileObject> list(String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) {
+        Map<String, List<IndexedFileObject>> index = getPackages();
+        List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+        if (recurse) {
+            for (Map.Entry<String, List<IndexedFileObject>> entry : index.entrySet()) {
+                if (isSubpackage(entry.getKey(), packageName)) {
+                    addFiles(entry.getValue(), kinds, result);
+                }
+            }
+        } else {
+            List<IndexedFileObject> packageFiles = index.get(packageName);
+            if (packageFiles != null) {
+                addFiles(packageFiles, kinds, result);
+            }
+        }
+        return result;
+    }
+
+    static boolean isSubpackage(String name, String packageName) {
+        return packageName.isEmpty() || name.equals(packageName) || name.startsWith(packageName + ".");
+    }
+
+    private static void addFiles(List<IndexedFileObject> files, Set<JavaFileObject.Kind> kinds,
+                                 List<JavaFileObject> result) {
+        for (IndexedFileObject file : files) {
+            if (kinds.contains(file.getKind())) {
+                result.add(file);
+            }
+        }
+    }
+
+    private Map<String, List<IndexedFileObject>> getPackages() {
+        Map<String, List<IndexedFileObject>> current = packages;
+        if (current == null) {
+            synchronized (this) {
+                current = packages;
+                if (current == null) {
+                    long startTime = System.currentTimeMillis();
+                    current = build();
+                    packages = current;
+                    log.debug("Classpath indexed in " + (System.currentTimeMillis() - startTime) + " ms, "
+                            + current.size() + " packages");
+                }
+            }
+        }
+        return current;
+    }
+
+    private Map<String, List<IndexedFileObject>> build() {
+        Map<String, List<IndexedFileObject>> result = new HashMap<String, List<IndexedFileObject>>();
+        Set<File> visited = new HashSet<File>();
+        for (File file : files) {
+            index(file, visited, result);
+        }
+        return result;
+    }
+
+    private void index(File file, Set<File> visited, Map<String, List<IndexedFileObject>> result) {
+        if (!visited.add(file.getAbsoluteFile())) {
+            return;
+        }
+        try {
+            if (file.isDirectory()) {
+                indexDirectory(file, result);
+            } else if (file.isFile()) {
+                indexJar(file, visited, result);
+            }
+        } catch (IOException e) {
+            log.warn("Unable to index classpath entry " + file, e);
+        }
+    }
+
+    private void indexDirectory(File directory, final Map<String, List<IndexedFileObject>> result) throws IOException {
+        final Path rootPath = directory.toPath();
+        final URI rootUri = directory.toURI();
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String relativePath = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+                JavaFileObject.Kind kind = getKind(relativePath);
+                if (kind != null) {
+                    try {
+                        URI uri = rootUri.resolve(new URI(null, null, relativePath, null));
+                        add(result, new IndexedFileObject(uri, kind, relativePath, file.toFile(), null, null));
+                    } catch (URISyntaxException e) {
+                        log.warn("Unable to index " + file, e);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void indexJar(File jar, Set<File> visited, Map<String, List<IndexedFileObject>> result) throws IOException {
+        JarFile jarFile = new JarFile(jar);
+        String jarUri = jar.toURI().toString();
+        Enumeration<? extends ZipEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            JavaFileObject.Kind kind = entry.isDirectory() ? null : getKind(entry.getName());
+            if (kind != null) {
+                URI uri = URI.create("jar:" + jarUri + "!/" + entry.getName());
+                add(result, new IndexedFileObject(uri, kind, entry.getName(), null, jarFile, entry));
+            }
+        }
+
+        Manifest manifest = jarFile.getManifest();
+        String manifestClassPath = manifest != null
+                ? manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) : null;
+        if (StringUtils.isNotBlank(manifestClassPath)) {
+            for (String path : manifestClassPath.trim().split("\\s+")) {
+                index(new File(jar.getParentFile(), path), visited, result);
+            }
+        }
+    }
+
+    private static JavaFileObject.Kind getKind(String relativePath) {
+        if (relativePath.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+            return JavaFileObject.Kind.CLASS;
+        } else if (relativePath.endsWith(JavaFileObject.Kind.SOURCE.extension)) {
+            return JavaFileObject.Kind.SOURCE;
+        } else {
+            return null;
+        }
+    }
+
+    private static void add(Map<String, List<IndexedFileObject>> result, IndexedFileObject file) {
+        String packageName = StringUtils.substringBeforeLast(file.binaryName, ".");
+        if (packageName.equals(file.binaryName)) {
+            packageName = "";
+        }
+        List<IndexedFileObject> packageFiles = result.get(packageName);
+        if (packageFiles == null) {
+            packageFiles = new ArrayList<IndexedFileObject>();
+            result.put(packageName, packageFiles);
+        }
+        packageFiles.add(file);
+    }
+
+    /**
+     * A class or source file in a classpath directory or jar. It does not extend SimpleJavaFileObject,
+     * which does not accept opaque jar URIs.
+     */
+    static final class IndexedFileObject implements JavaFileObject {
+        final String binaryName;
+
+        private final URI uri;
+        private final Kind kind;
+        private final String relativePath;
+        private final File file;
+        private final ZipFile zipFile;
+        private final ZipEntry entry;
+
+        IndexedFileObject(URI uri, Kind kind, String relativePath, File file, ZipFile zipFile, ZipEntry entry) {
+            this.uri = uri;
+            this.kind = kind;
+            this.relativePath = relativePath;
+            this.file = file;
+            this.zipFile = zipFile;
+            this.entry = entry;
+            this.binaryName = relativePath.substring(0, relativePath.length() - kind.extension.length())
+                    .replace('/', '.');
+        }
+
+        @Override
+        public Kind getKind() {
+            return kind;
+        }
+
+        @Override
+        public URI toUri() {
+            return uri;
+        }
+
+        @Override
+        public String getName() {
+            return zipFile != null ? zipFile.getName() + "(" + relativePath + ")" : file.getPath();
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return zipFile != null ? zipFile.getInputStream(entry) : new FileInputStream(file);
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+            return new InputStreamReader(openInputStream());
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            InputStream input = openInputStream();
+            try {
+                return IOUtils.toString(input);
+            } finally {
+                input.close();
+            }
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            throw new UnsupportedOperationException("Classpath files are read only");
+        }
+
+        @Override
+        public Writer openWriter() {
+            throw new UnsupportedOperationException("Classpath files are read only");
+        }
+
+        @Override
+        public long getLastModified() {
+            return zipFile != null ? entry.getTime() : file.lastModified();
+        }
+
+        @Override
+        public boolean delete() {
+            return false;
+        }
+
+        @Override
+        public boolean isNameCompatible(String simpleName, Kind kind) {
+            return kind == this.kind && StringUtils.substringAfterLast("." + binaryName, ".").equals(simpleName);
+        }
+
+        @Override
+        public NestingKind getNestingKind() {
+            return null;
+        }
+
+        @Override
+        public Modifier getAccessLevel() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+}
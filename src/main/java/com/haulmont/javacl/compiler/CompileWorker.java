@@ -0,0 +1,143 @@
+package com.haulmont.javacl.compiler;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Main class of a compile worker JVM started by {@link CompileWorkerPool}.
+ * <p/>
+ * The worker reads requests from stdin and writes responses to stdout, which is not available for logging.
+ * The first request is the compiler classpath, the worker warms up javac and answers {@link #OK}.
+ * After that it serves {@link #PING} and {@link #COMPILE} requests until stdin is closed.
+ */
+public class CompileWorker {
+    static final int PING = 1;
+    static final int COMPILE = 2;
+
+    static final int OK = 0;
+    static final int COMPILATION_FAILED = 1;
+    static final int ERROR = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        // stdout belongs to the protocol
+        System.setOut(System.err);
+
+        CompilerPool compilerPool = new CompilerPool(readString(in));
+        warmUp(compilerPool);
+        out.writeInt(OK);
+        out.flush();
+
+        while (true) {
+            int request;
+            try {
+                request = in.readInt();
+            } catch (EOFException e) {
+                // the serving JVM has stopped the worker or exited
+                return;
+            }
+            if (request == PING) {
+                out.writeInt(OK);
+            } else if (request == COMPILE) {
+                compile(in, out, compilerPool);
+            } else {
+                throw new IOException("Unknown request " + request);
+            }
+            out.flush();
+        }
+    }
+
+    private static void warmUp(CompilerPool compilerPool) {
+        CharSequenceCompiler<Object> compiler = new CharSequenceCompiler<Object>(Collections.<String>emptyList(), compilerPool);
+        try {
+            compiler.compileToByteCode(Collections.<String, CharSequence>singletonMap("warmup.WarmUp",
+                    "package warmup; public class WarmUp { java.util.List<String> list = new java.util.ArrayList<String>(); }"));
+        } catch (CharSequenceCompilerException e) {
+            System.err.println("Compile worker warm up failed: " + e.getMessage());
+        } finally {
+            compiler.release();
+        }
+    }
+
+    private static void compile(DataInputStream in, DataOutputStream out, CompilerPool compilerPool) throws IOException {
+        List<String> options = new ArrayList<String>();
+        for (int i = in.readInt(); i > 0; i--) {
+            options.add(readString(in));
+        }
+        Map<String, CharSequence> sources = new HashMap<String, CharSequence>();
+        for (int i = in.readInt(); i > 0; i--) {
+            sources.put(readString(in), readString(in));
+        }
+        Map<String, byte[]> classPathByteCode = readByteCode(in);
+
+        CharSequenceCompiler<Object> compiler = new CharSequenceCompiler<Object>(options, compilerPool);
+        try {
+            compiler.addClassPathClasses(classPathByteCode);
+            Map<String, byte[]> byteCode = compiler.compileToByteCode(sources);
+            out.writeInt(OK);
+            writeByteCode(out, byteCode);
+        } catch (CharSequenceCompilerException e) {
+            out.writeInt(COMPILATION_FAILED);
+            writeString(out, e.getMessage());
+        } catch (RuntimeException | LinkageError e) {
+            StringWriter stackTrace = new StringWriter();
+            e.printStackTrace(new PrintWriter(stackTrace));
+            out.writeInt(ERROR);
+            writeString(out, stackTrace.toString());
+        } finally {
+            compiler.release();
+        }
+    }
+
+    /**
+     * Strings are written as UTF-8 bytes with the length ahead, as sources may exceed the limit of writeUTF().
+     * Null is written as -1.
+     */
+    static void writeString(DataOutputStream out, CharSequence value) throws IOException {
+        writeBytes(out, value != null ? value.toString().getBytes(UTF_8) : null);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, UTF_8) : null;
+    }
+
+    static void writeByteCode(DataOutputStream out, Map<String, byte[]> byteCode) throws IOException {
+        out.writeInt(byteCode.size());
+        for (Map.Entry<String, byte[]> entry : byteCode.entrySet()) {
+            writeString(out, entry.getKey());
+            writeBytes(out, entry.getValue());
+        }
+    }
+
+    static Map<String, byte[]> readByteCode(DataInputStream in) throws IOException {
+        Map<String, byte[]> byteCode = new HashMap<String, byte[]>();
+        for (int i = in.readInt(); i > 0; i--) {
+            byteCode.put(readString(in), readBytes(in));
+        }
+        return byteCode;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,288 @@
+package com.haulmont.javacl.compiler;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compiles sources in long lived worker JVMs, so javac allocations do not affect the heap of the serving JVM.
+ * Workers are started on demand, receive sources and classpath byte code over stdin and send back byte code
+ * over stdout.
+ * <p/>
+ * An idle worker is pinged before use if it has not been used for a while. A worker which does not answer
+ * in time, or has died, is destroyed and replaced by a new one. Callers are expected to compile in process
+ * when {@link #compile} throws IOException. After a worker fails to start no new workers are started
+ * for a while.
+ * <p/>
+ * Annotation processors from the application classpath are not run by workers.
+ */
+public class CompileWorkerPool {
+    private static Log log = LogFactory.getLog(CompileWorkerPool.class);
+
+    private static final long HEALTH_CHECK_INTERVAL = 30000;
+    private static final long RESTART_DELAY = 60000;
+
+    private final int size;
+    private final List<String> jvmOptions;
+    private final Semaphore permits;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+    private final Timer watchdog = new Timer("javacl-compile-worker-watchdog", true);
+
+    private volatile long timeout = 120000;
+    private volatile long startFailedTime;
+    private volatile boolean closed;
+
+    /**
+     * @param size       maximum number of workers
+     * @param jvmOptions options of the worker JVMs, such as heap size
+     */
+    public CompileWorkerPool(int size, List<String> jvmOptions) {
+        this.size = size;
+        this.jvmOptions = new ArrayList<String>(jvmOptions);
+        this.permits = new Semaphore(size);
+    }
+
+    /**
+     * Maximum time of a compilation or a worker start, in milliseconds. The worker is destroyed after that.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param classPath         compiler classpath, workers started for another classpath are replaced
+     * @param sources           sources keyed by qualified class name
+     * @param classPathByteCode previously compiled classes the sources depend on
+     * @return byte code of the compiled classes
+     * @throws CharSequenceCompilerException if the sources cannot be compiled
+     * @throws IOException                   if there is no healthy worker or it has failed during compilation
+     */
+    Map<String, byte[]> compile(String classPath, List<String> options, Map<String, CharSequence> sources,
+                                Map<String, byte[]> classPathByteCode) throws CharSequenceCompilerException, IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a compile worker");
+        }
+        try {
+            Worker worker = borrow(classPath);
+            boolean healthy = false;
+            TimerTask timeoutTask = watch(worker);
+            try {
+                Map<String, byte[]> byteCode = worker.compile(options, sources, classPathByteCode);
+                healthy = true;
+                return byteCode;
+            } catch (CharSequenceCompilerException e) {
+                healthy = true;
+                throw e;
+            } finally {
+                timeoutTask.cancel();
+                if (healthy && !closed && idle.size() < size) {
+                    idle.offer(worker);
+                } else {
+                    worker.destroy();
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Stops all the idle workers, busy workers are stopped when they finish
+     */
+    public void close() {
+        closed = true;
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.destroy();
+        }
+        watchdog.cancel();
+    }
+
+    private Worker borrow(String classPath) throws IOException {
+        if (closed) {
+            throw new IOException("Compile worker pool is closed");
+        }
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            if (worker.classPath.equals(classPath) && isHealthy(worker)) {
+                return worker;
+            }
+            worker.destroy();
+        }
+
+        if (System.currentTimeMillis() - startFailedTime < RESTART_DELAY) {
+            throw new IOException("Compile workers are not started after a failure");
+        }
+        try {
+            return start(classPath);
+        } catch (IOException e) {
+            startFailedTime = System.currentTimeMillis();
+            throw e;
+        }
+    }
+
+    private boolean isHealthy(Worker worker) {
+        if (!worker.isAlive()) {
+            log.warn("Compile worker has exited, it will be replaced");
+            return false;
+        }
+        if (System.currentTimeMillis() - worker.lastUsedTime < HEALTH_CHECK_INTERVAL) {
+            return true;
+        }
+        TimerTask timeoutTask = watch(worker);
+        try {
+            worker.ping();
+            return true;
+        } catch (IOException e) {
+            log.warn("Compile worker does not respond, it will be replaced", e);
+            return false;
+        } finally {
+            timeoutTask.cancel();
+        }
+    }
+
+    private Worker start(String classPath) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(getWorkerClassPath());
+        command.add(CompileWorker.class.getName());
+
+        long startTime = System.currentTimeMillis();
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        Worker worker = new Worker(process, classPath);
+        TimerTask timeoutTask = watch(worker);
+        try {
+            worker.handshake();
+        } catch (IOException e) {
+            worker.destroy();
+            throw new IOException("Unable to start compile worker " + command, e);
+        } finally {
+            timeoutTask.cancel();
+        }
+        log.info("Compile worker started in " + (System.currentTimeMillis() - startTime) + " ms");
+        return worker;
+    }
+
+    /**
+     * @return classpath with the classes the worker needs, not the application classpath
+     */
+    private static String getWorkerClassPath() {
+        Set<String> paths = new LinkedHashSet<String>();
+        for (Class<?> clazz : new Class<?>[]{CompileWorker.class, StringUtils.class, IOUtils.class, LogFactory.class}) {
+            CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+            if (codeSource != null && codeSource.getLocation() != null) {
+                try {
+                    paths.add(new File(codeSource.getLocation().toURI()).getPath());
+                } catch (URISyntaxException | IllegalArgumentException e) {
+                    log.warn("Unable to add " + codeSource.getLocation() + " to the compile worker classpath", e);
+                }
+            }
+        }
+        return StringUtils.join(paths, File.pathSeparator);
+    }
+
+    /**
+     * Destroys the worker unless the returned task is cancelled in time
+     */
+    private TimerTask watch(final Worker worker) {
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                log.warn("Compile worker timed out after " + timeout + " ms");
+                worker.destroy();
+            }
+        };
+        watchdog.schedule(task, timeout);
+        return task;
+    }
+
+    private static class Worker {
+        final Process process;
+        final String classPath;
+        final DataOutputStream out;
+        final DataInputStream in;
+        volatile long lastUsedTime = System.currentTimeMillis();
+
+        Worker(Process process, String classPath) {
+            this.process = process;
+            this.classPath = classPath;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        void handshake() throws IOException {
+            CompileWorker.writeString(out, classPath);
+            out.flush();
+            readStatus();
+        }
+
+        void ping() throws IOException {
+            out.writeInt(CompileWorker.PING);
+            out.flush();
+            readStatus();
+            lastUsedTime = System.currentTimeMillis();
+        }
+
+        Map<String, byte[]> compile(List<String> options, Map<String, CharSequence> sources,
+                                    Map<String, byte[]> classPathByteCode) throws IOException, CharSequenceCompilerException {
+            out.writeInt(CompileWorker.COMPILE);
+            out.writeInt(options.size());
+            for (String option : options) {
+                CompileWorker.writeString(out, option);
+            }
+            out.writeInt(sources.size());
+            for (Map.Entry<String, CharSequence> entry : sources.entrySet()) {
+                CompileWorker.writeString(out, entry.getKey());
+                CompileWorker.writeString(out, entry.getValue());
+            }
+            CompileWorker.writeByteCode(out, classPathByteCode);
+            out.flush();
+
+            int status = in.readInt();
+            lastUsedTime = System.currentTimeMillis();
+            if (status == CompileWorker.OK) {
+                return CompileWorker.readByteCode(in);
+            } else if (status == CompileWorker.COMPILATION_FAILED) {
+                throw new CharSequenceCompilerException(CompileWorker.readString(in), sources.keySet(), null);
+            } else {
+                throw new IOException("Compile worker error: " + CompileWorker.readString(in));
+            }
+        }
+
+        private void readStatus() throws IOException {
+            int status = in.readInt();
+            if (status != CompileWorker.OK) {
+                throw new IOException("Unexpected compile worker status " + status);
+            }
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.haulmont.javacl.compiler;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps the system Java compiler and warmed up standard file managers between compilations,
+ * so classpath jars are not reopened and reindexed for each compilation.
+ * <p/>
+ * A file manager is used by one compilation at a time. File managers created
+ * for a previous classpath are closed instead of being reused. Compilations with the same classpath
+ * share one index of its packages.
+ */
+public class CompilerPool {
+    private static Log log = LogFactory.getLog(CompilerPool.class);
+
+    private final Queue<PooledFileManager> idle = new ConcurrentLinkedQueue<PooledFileManager>();
+
+    private volatile JavaCompiler compiler;
+    private volatile ClassPath classPath;
+    private volatile CompileWorkerPool workerPool;
+
+    public CompilerPool(String classPath) {
+        setClassPath(classPath);
+    }
+
+    /**
+     * Changes the classpath. Idle file managers created for the previous classpath are closed.
+     */
+    public synchronized void setClassPath(String classPath) {
+        if (this.classPath != null && this.classPath.value.equals(classPath)) {
+            return;
+        }
+        this.classPath = new ClassPath(classPath);
+
+        PooledFileManager fileManager;
+        while ((fileManager = idle.poll()) != null) {
+            close(fileManager);
+        }
+    }
+
+    public String getClassPath() {
+        return classPath.value;
+    }
+
+    /**
+     * Sets the pool of worker JVMs which compile sources instead of the compiler of this JVM,
+     * null to compile in process. The previous pool is closed.
+     */
+    public synchronized void setWorkerPool(CompileWorkerPool workerPool) {
+        CompileWorkerPool previous = this.workerPool;
+        this.workerPool = workerPool;
+        if (previous != null && previous != workerPool) {
+            previous.close();
+        }
+    }
+
+    CompileWorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * @throws IllegalStateException if the Java compiler cannot be loaded.
+     */
+    JavaCompiler getCompiler() {
+        JavaCompiler result = compiler;
+        if (result == null) {
+            result = ToolProvider.getSystemJavaCompiler();
+            if (result == null) {
+                throw new IllegalStateException("Cannot find the system Java compiler. "
+                        + "Check that your class path includes tools.jar");
+            }
+            compiler = result;
+        }
+        return result;
+    }
+
+    PooledFileManager borrow() {
+        ClassPath currentClassPath = classPath;
+        PooledFileManager pooled;
+        while ((pooled = idle.poll()) != null) {
+            if (pooled.classPath == currentClassPath) {
+                return pooled;
+            }
+            close(pooled);
+        }
+
+        StandardJavaFileManager fileManager = getCompiler().getStandardFileManager(null, null, null);
+        try {
+            fileManager.setLocation(StandardLocation.CLASS_PATH, currentClassPath.files);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to set classpath " + currentClassPath.value, e);
+        }
+        return new PooledFileManager(fileManager, currentClassPath);
+    }
+
+    void release(PooledFileManager fileManager) {
+        if (fileManager.classPath == classPath) {
+            idle.offer(fileManager);
+        } else {
+            close(fileManager);
+        }
+    }
+
+    private void close(PooledFileManager pooled) {
+        try {
+            pooled.fileManager.close();
+        } catch (IOException e) {
+            log.warn("Unable to close file manager", e);
+        }
+    }
+
+    static class PooledFileManager {
+        final StandardJavaFileManager fileManager;
+        final ClassPath classPath;
+
+        PooledFileManager(StandardJavaFileManager fileManager, ClassPath classPath) {
+            this.fileManager = fileManager;
+            this.classPath = classPath;
+        }
+    }
+
+    static class ClassPath {
+        final String value;
+        final List<File> files = new ArrayList<File>();
+        final ClassPathIndex index;
+
+        ClassPath(String value) {
+            this.value = value;
+            for (String path : value.split(File.pathSeparator)) {
+                if (StringUtils.isNotBlank(path)) {
+                    files.add(new File(path));
+                }
+            }
+            this.index = new ClassPathIndex(files);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -15,6 +16,14 @@ final class FileManagerImpl extends ForwardingJavaFileManager<JavaFileManager> {
    // Internal map of filename URIs to JavaFileObjects.
    private final Map<URI, JavaFileObject> fileObjects = new HashMap<URI, JavaFileObject>();
 
+   // The same files and the class files written by the compiler, by package
+   private final Map<String, List<JavaFileObject>> classPathFiles = new HashMap<String, List<JavaFileObject>>();
+   private final Map<String, List<JavaFileObject>> sourcePathFiles = new HashMap<String, List<JavaFileObject>>();
+   private final Map<String, List<JavaFileObject>> outputFiles = new HashMap<String, List<JavaFileObject>>();
+
+   // index of the classpath of the delegate, null to list the classpath with the delegate
+   private final ClassPathIndex classPathIndex;
+
    /**
     * Construct a new FileManager which forwards to the <var>fileManager</var>
     * for source and to the <var>classLoader</var> for classes
@@ -25,10 +34,14 @@ final class FileManagerImpl extends ForwardingJavaFileManager<JavaFileManager> {
     * @param classLoader
     *           a ClassLoader which contains dependent classes that the compiled
     *           classes will require when compiling them.
+    * @param classPathIndex
+    *           index of the classpath set on the <var>fileManager</var>, or null
     */
-   public FileManagerImpl(JavaFileManager fileManager, ClassLoaderImpl classLoader) {
+   public FileManagerImpl(JavaFileManager fileManager, ClassLoaderImpl classLoader,
+         ClassPathIndex classPathIndex) {
       super(fileManager);
       this.classLoader = classLoader;
+      this.classPathIndex = classPathIndex;
    }
 
    /**
@@ -76,7 +89,25 @@ final class FileManagerImpl extends ForwardingJavaFileManager<JavaFileManager> {
     */
    public void putFileForInput(StandardLocation location, String packageName,
          String relativeName, JavaFileObject file) {
-      fileObjects.put(uri(location, packageName, relativeName), file);
+      JavaFileObject previous = fileObjects.put(uri(location, packageName, relativeName), file);
+      if (location == StandardLocation.CLASS_PATH) {
+         addPackageFile(classPathFiles, packageName, file, previous);
+      } else if (location == StandardLocation.SOURCE_PATH) {
+         addPackageFile(sourcePathFiles, packageName, file, previous);
+      }
+   }
+
+   private static void addPackageFile(Map<String, List<JavaFileObject>> filesByPackage, String packageName,
+         JavaFileObject file, JavaFileObject previous) {
+      List<JavaFileObject> packageFiles = filesByPackage.get(packageName);
+      if (packageFiles == null) {
+         packageFiles = new ArrayList<JavaFileObject>();
+         filesByPackage.put(packageName, packageFiles);
+      }
+      if (previous != null) {
+         packageFiles.remove(previous);
+      }
+      packageFiles.add(file);
    }
 
    /**
@@ -100,9 +131,19 @@ final class FileManagerImpl extends ForwardingJavaFileManager<JavaFileManager> {
          JavaFileObject.Kind kind, FileObject outputFile) throws IOException {
       JavaFileObject file = new JavaFileObjectImpl(qualifiedName, kind);
       classLoader.add(qualifiedName, file);
+      int dotPos = qualifiedName.lastIndexOf('.');
+      addPackageFile(outputFiles, dotPos == -1 ? "" : qualifiedName.substring(0, dotPos), file, null);
       return file;
    }
 
+   /**
+    * The underlying file manager may be shared between compilations, so it is only flushed
+    */
+   @Override
+   public void close() throws IOException {
+      flush();
+   }
+
    @Override
    public ClassLoader getClassLoader(Location location) {
       return classLoader;
@@ -115,34 +156,61 @@ final class FileManagerImpl extends ForwardingJavaFileManager<JavaFileManager> {
       // simply run the default implementation
       if (file instanceof JavaFileObjectImpl)
          result = file.getName();
+      else if (file instanceof ClassPathIndex.IndexedFileObject)
+         result = ((ClassPathIndex.IndexedFileObject) file).binaryName;
       else
          result = super.inferBinaryName(loc, file);
       return result;
    }
 
+   /**
+    * The delegate supports only its own file objects
+    */
+   @Override
+   public boolean isSameFile(FileObject a, FileObject b) {
+      if (a instanceof ClassPathIndex.IndexedFileObject || b instanceof ClassPathIndex.IndexedFileObject)
+         return a.toUri().equals(b.toUri());
+      return super.isSameFile(a, b);
+   }
+
+   /**
+    * In-memory files are looked up by package. Classpath files come from the classpath index if there is one,
+    * other locations are listed by the delegate.
+    */
    @Override
    public Iterable<JavaFileObject> list(Location location, String packageName,
          Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
-      Iterable<JavaFileObject> result = super.list(location, packageName, kinds,
-            recurse);
       ArrayList<JavaFileObject> files = new ArrayList<JavaFileObject>();
-      if (location == StandardLocation.CLASS_PATH
-            && kinds.contains(JavaFileObject.Kind.CLASS)) {
-         for (JavaFileObject file : fileObjects.values()) {
-            if (file.getKind() == JavaFileObject.Kind.CLASS && file.getName().startsWith(packageName))
-               files.add(file);
+      if (location == StandardLocation.CLASS_PATH) {
+         if (kinds.contains(JavaFileObject.Kind.CLASS)) {
+            addPackageFiles(classPathFiles, packageName, recurse, files);
+            addPackageFiles(outputFiles, packageName, recurse, files);
+         }
+         if (classPathIndex != null) {
+            files.addAll(classPathIndex.list(packageName, kinds, recurse));
+            return files;
          }
-         files.addAll(classLoader.files());
       } else if (location == StandardLocation.SOURCE_PATH
             && kinds.contains(JavaFileObject.Kind.SOURCE)) {
-         for (JavaFileObject file : fileObjects.values()) {
-            if (file.getKind() == JavaFileObject.Kind.SOURCE && file.getName().startsWith(packageName))
-               files.add(file);
-         }
+         addPackageFiles(sourcePathFiles, packageName, recurse, files);
       }
-      for (JavaFileObject file : result) {
+      for (JavaFileObject file : super.list(location, packageName, kinds, recurse)) {
          files.add(file);
       }
       return files;
    }
+
+   private static void addPackageFiles(Map<String, List<JavaFileObject>> filesByPackage, String packageName,
+         boolean recurse, List<JavaFileObject> files) {
+      if (recurse) {
+         for (Map.Entry<String, List<JavaFileObject>> entry : filesByPackage.entrySet()) {
+            if (ClassPathIndex.isSubpackage(entry.getKey(), packageName))
+               files.addAll(entry.getValue());
+         }
+      } else {
+         List<JavaFileObject> packageFiles = filesByPackage.get(packageName);
+         if (packageFiles != null)
+            files.addAll(packageFiles);
+      }
+   }
 }
@@ -0,0 +1,61 @@
+package com.haulmont.javacl.compiler;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Names of the classes a class loader has failed to find, so repeated probes of the same name
+ * do not walk the parent chain and fill the stack trace of a ClassNotFoundException each time.
+ * <p/>
+ * The cache is cleared when it grows over the limit, so probing arbitrary names does not retain memory.
+ */
+public final class NegativeLookupCache {
+    private static final int DEFAULT_LIMIT = 10000;
+
+    private final Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final int limit;
+
+    public NegativeLookupCache() {
+        this(DEFAULT_LIMIT);
+    }
+
+    public NegativeLookupCache(int limit) {
+        this.limit = limit;
+    }
+
+    public boolean contains(String className) {
+        return names.contains(className);
+    }
+
+    public void add(String className) {
+        if (names.size() >= limit) {
+            names.clear();
+        }
+        names.add(className);
+    }
+
+    public void remove(String className) {
+        names.remove(className);
+    }
+
+    /**
+     * @return exception for a cached miss, without the stack trace
+     */
+    public static ClassNotFoundException miss(String className) {
+        return new StacklessClassNotFoundException(className);
+    }
+
+    private static final class StacklessClassNotFoundException extends ClassNotFoundException {
+        private static final long serialVersionUID = 1L;
+
+        StacklessClassNotFoundException(String className) {
+            super(className);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
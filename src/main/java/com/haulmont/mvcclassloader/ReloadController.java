@@ -1,12 +1,15 @@
 package com.haulmont.mvcclassloader;
 
 import com.haulmont.javacl.JavaClassLoader;
+import com.haulmont.javacl.ReloadResult;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.servlet.ModelAndView;
 
+import java.util.Arrays;
+
 @Controller
 public class ReloadController {
     @Autowired
@@ -14,19 +17,53 @@ public class ReloadController {
 
     @RequestMapping(value = "/reload", method = RequestMethod.GET)
     public ModelAndView welcome() {
+        ReloadResult reloadResult;
+        try {
+            reloadResult = javaClassLoader.loadClasses(Arrays.asList(
+                    "com.haulmont.mvcclassloader.SomeBeanImpl",
+                    "com.haulmont.mvcclassloader.WelcomeController"));
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+
+        return createModel(reloadResult);
+    }
+
+    /**
+     * Recompiles all the loaded classes whose sources have been changed
+     */
+    @RequestMapping(value = "/reload/changed", method = RequestMethod.GET)
+    public ModelAndView reloadChanged() {
+        ReloadResult reloadResult;
         try {
-            javaClassLoader.loadClass("com.haulmont.mvcclassloader.SomeBeanImpl");
-            javaClassLoader.loadClass("com.haulmont.mvcclassloader.WelcomeController");
+            reloadResult = javaClassLoader.reloadChanged();
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
 
+        return createModel(reloadResult);
+    }
+
+    /**
+     * Lists the class loaders of compilations which have not been garbage collected yet
+     */
+    @RequestMapping(value = "/reload/generations", method = RequestMethod.GET)
+    public ModelAndView generations() {
+        ModelAndView model = new ModelAndView();
+        model.setViewName("generations");
+        model.addObject("generations", javaClassLoader.getLiveGenerations());
+        model.addObject("unloaded", javaClassLoader.getMetrics().getUnloadedGenerationCount());
+
+        return model;
+    }
+
+    private ModelAndView createModel(ReloadResult reloadResult) {
         ModelAndView model = new ModelAndView();
         model.setViewName("reload");
         model.addObject("result", "ok");
+        model.addObject("reloadResult", reloadResult);
 
         return model;
-
     }
 
-}
\ No newline at end of file
+}
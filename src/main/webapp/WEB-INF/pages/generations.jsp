@@ -0,0 +1,33 @@
+<%@taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+<!DOCTYPE html>
+<html lang="en">
+<head>
+</head>
+<body>
+
+<h1>Live class loader generations</h1>
+
+<p>Unloaded generations: ${unloaded}</p>
+
+<ul>
+    <c:forEach items="${generations}" var="generation">
+        <li>
+            ${generation.id}, created ${generation.createdTime}
+            <c:if test="${generation.retired}">, retired ${generation.retiredTime}</c:if>
+            <ul>
+                <c:forEach items="${generation.classNames}" var="className">
+                    <li>${className}</li>
+                </c:forEach>
+            </ul>
+            Pinned by:
+            <ul>
+                <c:forEach items="${generation.pins}" var="pin">
+                    <li>${pin}</li>
+                </c:forEach>
+            </ul>
+        </li>
+    </c:forEach>
+</ul>
+
+</body>
+</html>
@@ -7,5 +7,20 @@
 
 <h1>Class reloading result ${result}</h1>
 
+<h2>Recompiled classes</h2>
+<ul>
+    <c:forEach items="${reloadResult.compiledClasses}" var="className">
+        <li>${className}</li>
+    </c:forEach>
+</ul>
+
+<h2>Time, ms</h2>
+<ul>
+    <c:forEach items="${reloadResult.phaseTimes}" var="phase">
+        <li>${phase.key}: ${phase.value}</li>
+    </c:forEach>
+    <li>total: ${reloadResult.totalTime}</li>
+</ul>
+
 </body>
-</html>
\ No newline at end of file
+</html>
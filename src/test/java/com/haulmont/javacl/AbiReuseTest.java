@@ -0,0 +1,95 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks when the dependents of a modified class are defined again from their retained byte code
+ * and when they are recompiled
+ */
+public class AbiReuseTest {
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
+    private JavaClassLoader javaClassLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        writeSource("p.Impl", "package p; public class Impl { public String v() { return \"i\"; } }");
+        writeSource("q.User", "package q; import p.Impl; public class User { public String v() { return new Impl().v() + \"-u\"; } }");
+        javaClassLoader = new JavaClassLoader(getClass().getClassLoader(), rootDir.getRoot().getAbsolutePath(), null);
+        // a source of another size is detected as modified without waiting for the next file system timestamp
+        javaClassLoader.setContentFingerprints(true);
+        javaClassLoader.setAbiFingerprints(true);
+        javaClassLoader.loadClasses(Collections.singleton("q.User"), false);
+    }
+
+    @After
+    public void tearDown() {
+        javaClassLoader.destroy();
+    }
+
+    @Test
+    public void bodyChangeReusesDependent() throws Exception {
+        assertEquals(1, reload("p.Impl", "package p; public class Impl { public String v() { return \"ii\"; } }"));
+        assertEquals("ii-u", v("q.User"));
+    }
+
+    @Test
+    public void privateMemberChangeReusesDependent() throws Exception {
+        assertEquals(1, reload("p.Impl", "package p; public class Impl { private int i; public String v() { return \"i\" + i; } }"));
+        assertEquals("i0-u", v("q.User"));
+    }
+
+    @Test
+    public void packagePrivateMemberChangeRecompilesDependent() throws Exception {
+        assertEquals(2, reload("p.Impl", "package p; public class Impl { int i; public String v() { return \"i\"; } }"));
+        assertEquals("i-u", v("q.User"));
+    }
+
+    @Test
+    public void publicSignatureChangeRecompilesDependent() throws Exception {
+        assertEquals(2, reload("p.Impl", "package p; public class Impl { public CharSequence v() { return \"ic\"; } }"));
+        assertEquals("ic-u", v("q.User"));
+    }
+
+    @Test
+    public void samePackageDependentIsCompiledWithModifiedClass() throws Exception {
+        writeSource("p.Hidden", "package p; class Hidden { String h() { return \"h\"; } }");
+        writeSource("p.HiddenUser", "package p; public class HiddenUser { public String v() { return new Hidden().h(); } }");
+        javaClassLoader.loadClasses(Collections.singleton("p.HiddenUser"), false);
+
+        // the package-private class is accessible only from the class loader which defines the modified class
+        assertEquals(1, reload("p.Hidden", "package p; class Hidden { String h() { return \"hh\"; } }"));
+        assertEquals("hh", v("p.HiddenUser"));
+    }
+
+    /**
+     * @return number of javac runs, one for the modified class and one more if its dependents are recompiled
+     */
+    private long reload(String className, String source) throws Exception {
+        writeSource(className, source);
+        long javacRunCount = javaClassLoader.getMetrics().getJavacRunCount();
+        javaClassLoader.loadClasses(Collections.singleton(className), false);
+        return javaClassLoader.getMetrics().getJavacRunCount() - javacRunCount;
+    }
+
+    private String v(String className) throws Exception {
+        Class<?> clazz = javaClassLoader.loadClass(className);
+        return (String) clazz.getMethod("v").invoke(clazz.newInstance());
+    }
+
+    private void writeSource(String className, String source) throws IOException {
+        FileUtils.writeStringToFile(new File(rootDir.getRoot(), className.replace('.', '/') + ".java"), source);
+    }
+}
@@ -0,0 +1,96 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a bulk reload compiles all modified classes and their dependents in one compilation
+ * and updates the context once
+ */
+public class BulkReloadTest {
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
+    private JavaClassLoader javaClassLoader;
+    private int refreshCount;
+
+    @Before
+    public void setUp() throws Exception {
+        writeSource("p.A", "package p; public class A { public String v() { return new B().v() + \"a\"; } }");
+        writeSource("p.B", "package p; public class B { public String v() { return \"b\"; } }");
+        writeSource("q.C", "package q; import p.A; public class C { public String v() { return new A().v() + \"c\"; } }");
+        writeSource("r.E", "package r; public class E { public String v() { return \"e\"; } }");
+        javaClassLoader = new JavaClassLoader(getClass().getClassLoader(), rootDir.getRoot().getAbsolutePath(), null);
+        // a source of another size is detected as modified without waiting for the next file system timestamp
+        javaClassLoader.setContentFingerprints(true);
+        javaClassLoader.setApplicationContext(new XmlWebApplicationContext() {
+            @Override
+            public void refresh() {
+                refreshCount++;
+            }
+        });
+        javaClassLoader.loadClasses(Arrays.asList("q.C", "r.E", "java.lang.String"));
+        refreshCount = 0;
+    }
+
+    @After
+    public void tearDown() {
+        javaClassLoader.destroy();
+    }
+
+    @Test
+    public void modifiedClassesAreCompiledTogether() throws Exception {
+        writeSource("p.B", "package p; public class B { public String v() { return \"bb\"; } }");
+        writeSource("r.E", "package r; public class E { public String v() { return \"ee\"; } }");
+        ReloadResult result = javaClassLoader.loadClasses(Arrays.asList("p.B", "r.E"));
+
+        assertEquals(1, refreshCount);
+        assertEquals(new HashSet<>(Arrays.asList("p.A", "p.B", "q.C", "r.E")), result.getCompiledClasses());
+        assertEquals("bbac", v("q.C"));
+        assertEquals("ee", v("r.E"));
+    }
+
+    @Test
+    public void reloadChangedFindsModifiedClasses() throws Exception {
+        writeSource("p.B", "package p; public class B { public String v() { return \"bb\"; } }");
+        ReloadResult result = javaClassLoader.reloadChanged();
+
+        assertEquals(1, refreshCount);
+        assertTrue(result.getCompiledClasses().toString(), result.getCompiledClasses().contains("p.B"));
+        assertTrue(result.getPhaseTimes().keySet().containsAll(Arrays.asList(ReloadResult.SCOPE_PHASE,
+                ReloadResult.COMPILE_PHASE, ReloadResult.LINK_PHASE, ReloadResult.CONTEXT_PHASE)));
+        assertEquals("bbac", v("q.C"));
+    }
+
+    @Test
+    public void unmodifiedClassesAreNotReloaded() throws Exception {
+        long javacRunCount = javaClassLoader.getMetrics().getJavacRunCount();
+        ReloadResult result = javaClassLoader.reloadChanged();
+
+        assertEquals(0, javaClassLoader.getMetrics().getJavacRunCount() - javacRunCount);
+        assertEquals(0, refreshCount);
+        assertTrue(result.getCompiledClasses().toString(), result.getCompiledClasses().isEmpty());
+    }
+
+    private String v(String className) throws Exception {
+        Class<?> clazz = javaClassLoader.loadClass(className);
+        return (String) clazz.getMethod("v").invoke(clazz.newInstance());
+    }
+
+    private void writeSource(String className, String source) throws IOException {
+        FileUtils.writeStringToFile(new File(rootDir.getRoot(), className.replace('.', '/') + ".java"), source);
+    }
+}
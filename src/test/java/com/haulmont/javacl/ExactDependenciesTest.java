@@ -0,0 +1,111 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the dependency graph and the compile set follow the byte code references
+ * and the constants named in the sources, not the imports and packages
+ */
+public class ExactDependenciesTest {
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
+    private JavaClassLoader javaClassLoader;
+
+    @Before
+    public void setUp() throws IOException {
+        writeSource("p.A", "package p; public class A { public String v() { return new B().v() + K.V; } } // D is not used");
+        writeSource("p.B", "package p; public class B { public String v() { return \"b\"; } }");
+        writeSource("p.K", "package p; public class K { public static final String V = \"k\"; }");
+        writeSource("p.D", "package p; public class D { }");
+        javaClassLoader = new JavaClassLoader(getClass().getClassLoader(), rootDir.getRoot().getAbsolutePath(), null);
+        // a source of another size is detected as modified without waiting for the next file system timestamp
+        javaClassLoader.setContentFingerprints(true);
+    }
+
+    @After
+    public void tearDown() {
+        javaClassLoader.destroy();
+    }
+
+    @Test
+    public void graphKeepsReferencedClassesAndNamedConstants() throws Exception {
+        javaClassLoader.loadClasses(Collections.singleton("p.A"), false);
+
+        assertEquals(new HashSet<>(Arrays.asList("p.B", "p.K")),
+                new HashSet<>(javaClassLoader.dependencyGraph.getDependencies("p.A")));
+        assertTrue(javaClassLoader.dependencyGraph.getDependents("p.D").isEmpty());
+    }
+
+    @Test
+    public void unusedPackageClassIsNotRecompiled() throws Exception {
+        javaClassLoader.loadClasses(Collections.singleton("p.A"), false);
+
+        writeSource("p.D", "package p; public class D { private int d; }");
+        ReloadResult result = javaClassLoader.loadClasses(Collections.singleton("p.A"), false);
+
+        assertTrue(result.getCompiledClasses().toString(), result.getCompiledClasses().isEmpty());
+    }
+
+    @Test
+    public void onlyDependentsAreCompiledWithModifiedClass() throws Exception {
+        javaClassLoader.loadClasses(Collections.singleton("p.A"), false);
+
+        writeSource("p.B", "package p; public class B { public String v() { return \"bb\"; } }");
+        ReloadResult result = javaClassLoader.loadClasses(Collections.singleton("p.B"), false);
+
+        assertEquals(new HashSet<>(Arrays.asList("p.A", "p.B")), result.getCompiledClasses());
+        assertEquals("bbk", v("p.A"));
+    }
+
+    @Test
+    public void inlinedConstantIsRecompiled() throws Exception {
+        javaClassLoader.loadClasses(Collections.singleton("p.A"), false);
+        assertEquals("bk", v("p.A"));
+
+        writeSource("p.K", "package p; public class K { public static final String V = \"kk\"; }");
+        ReloadResult result = javaClassLoader.loadClasses(Collections.singleton("p.K"), false);
+
+        assertEquals(new HashSet<>(Arrays.asList("p.A", "p.K")), result.getCompiledClasses());
+        assertEquals("bkk", v("p.A"));
+    }
+
+    @Test
+    public void packagePrivateClassIsCompiledWithItsUser() throws Exception {
+        writeSource("p.Hidden", "package p; class Hidden { String h() { return \"h\"; } }");
+        writeSource("p.User", "package p; public class User { public String v() { return new Hidden().h(); } }");
+        javaClassLoader.loadClasses(Collections.singleton("p.User"), false);
+
+        writeSource("p.User", "package p; public class User { public String v() { return new Hidden().h() + \"u\"; } }");
+        ReloadResult result = javaClassLoader.loadClasses(Collections.singleton("p.User"), false);
+        assertEquals(new HashSet<>(Arrays.asList("p.Hidden", "p.User")), result.getCompiledClasses());
+        assertEquals("hu", v("p.User"));
+
+        writeSource("p.Hidden", "package p; class Hidden { String h() { return \"hh\"; } }");
+        javaClassLoader.loadClasses(Collections.singleton("p.Hidden"), false);
+        assertEquals("hhu", v("p.User"));
+    }
+
+    private String v(String className) throws Exception {
+        Class<?> clazz = javaClassLoader.loadClass(className);
+        return (String) clazz.getMethod("v").invoke(clazz.newInstance());
+    }
+
+    private void writeSource(String className, String source) throws IOException {
+        FileUtils.writeStringToFile(new File(rootDir.getRoot(), className.replace('.', '/') + ".java"), source);
+    }
+}
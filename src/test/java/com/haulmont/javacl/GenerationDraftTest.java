@@ -0,0 +1,114 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a compilation works on a private draft, which is published with one snapshot swap
+ * or dropped without touching the published classes
+ */
+public class GenerationDraftTest {
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
+    private JavaClassLoader javaClassLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        writeSource("p.A", "package p; public class A { public String v() { return new B().v() + \"a\"; } }");
+        writeSource("p.B", "package p; public class B { public String v() { return \"b\"; } }");
+        javaClassLoader = new JavaClassLoader(getClass().getClassLoader(), rootDir.getRoot().getAbsolutePath(), null);
+        // a source of another size is detected as modified without waiting for the next file system timestamp
+        javaClassLoader.setContentFingerprints(true);
+        javaClassLoader.loadClasses(Collections.singleton("p.A"), false);
+    }
+
+    @After
+    public void tearDown() {
+        javaClassLoader.destroy();
+    }
+
+    @Test
+    public void draftIsInvisibleUntilPublished() {
+        AtomicReference<GenerationSnapshot> snapshot = new AtomicReference<>(javaClassLoader.snapshot.get());
+        GenerationSnapshot published = snapshot.get();
+        TimestampClass added = new TimestampClass(String.class, new Date());
+
+        GenerationDraft draft = new GenerationDraft(snapshot);
+        assertSame(published.get("p.B"), draft.remove("p.B"));
+        draft.add(Collections.singletonMap("p.C", added));
+
+        assertNull(draft.get("p.B"));
+        assertSame(added, draft.get("p.C"));
+        assertSame(published, snapshot.get());
+        assertTrue(published.contains("p.B"));
+        assertFalse(published.contains("p.C"));
+
+        GenerationSnapshot next = draft.publish();
+        assertSame(next, snapshot.get());
+        assertEquals(published.version + 1, next.version);
+        assertFalse(next.contains("p.B"));
+        assertSame(added, next.get("p.C"));
+        assertTrue(next.contains("p.A"));
+    }
+
+    @Test
+    public void publishKeepsClassesOfConcurrentDrafts() {
+        AtomicReference<GenerationSnapshot> snapshot = new AtomicReference<>(GenerationSnapshot.EMPTY);
+        GenerationDraft first = new GenerationDraft(snapshot);
+        GenerationDraft second = new GenerationDraft(snapshot);
+        first.add(Collections.singletonMap("p.C", new TimestampClass(String.class, new Date())));
+        second.add(Collections.singletonMap("p.D", new TimestampClass(Integer.class, new Date())));
+
+        first.publish();
+        second.publish();
+
+        assertTrue(snapshot.get().contains("p.C"));
+        assertTrue(snapshot.get().contains("p.D"));
+        assertEquals(2, snapshot.get().version);
+    }
+
+    @Test
+    public void failedCompilationKeepsPublishedSnapshot() throws Exception {
+        GenerationSnapshot published = javaClassLoader.snapshot.get();
+        Class<?> previousClass = javaClassLoader.loadClass("p.A");
+
+        writeSource("p.B", "package p; public class B { public String v() { return \"bb\" } }");
+        try {
+            javaClassLoader.loadClasses(Collections.singleton("p.B"), false);
+            fail("Compilation error expected");
+        } catch (RuntimeException e) {
+            // the draft is dropped
+        }
+
+        assertSame(published, javaClassLoader.snapshot.get());
+        assertSame(previousClass, published.get("p.A").clazz);
+
+        writeSource("p.B", "package p; public class B { public String v() { return \"bb\"; } }");
+        javaClassLoader.loadClasses(Collections.singleton("p.B"), false);
+        assertEquals(published.version + 1, javaClassLoader.snapshot.get().version);
+        Class<?> clazz = javaClassLoader.loadClass("p.A");
+        assertEquals("bba", clazz.getMethod("v").invoke(clazz.newInstance()));
+    }
+
+    private void writeSource(String className, String source) throws IOException {
+        FileUtils.writeStringToFile(new File(rootDir.getRoot(), className.replace('.', '/') + ".java"), source);
+    }
+}
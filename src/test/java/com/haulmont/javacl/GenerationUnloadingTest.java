@@ -0,0 +1,82 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.BeanUtils;
+
+import java.beans.Introspector;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reloads a class many times and checks that the class loaders of the replaced generations are garbage collected
+ */
+public class GenerationUnloadingTest {
+    private static final int RELOAD_CYCLES = 20;
+    private static final int MAX_LIVE_GENERATIONS = 2;
+    private static final long UNLOAD_TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
+    private JavaClassLoader javaClassLoader;
+
+    @Before
+    public void setUp() throws IOException {
+        writeSource("p.A", "package p; public class A { private String name; public String getName() { return name; } "
+                + "public void setName(String name) { this.name = name; } public String v() { return new B().v(); } }");
+        javaClassLoader = new JavaClassLoader(getClass().getClassLoader(), rootDir.getRoot().getAbsolutePath(), null);
+        // a source of another size is detected as modified without waiting for the next file system timestamp
+        javaClassLoader.setContentFingerprints(true);
+    }
+
+    @After
+    public void tearDown() {
+        javaClassLoader.destroy();
+    }
+
+    @Test
+    public void replacedGenerationsAreUnloaded() throws Exception {
+        for (int i = 0; i < RELOAD_CYCLES; i++) {
+            writeSource("p.B", "package p; public class B { public String v() { return \"" + StringUtils.repeat("b", i + 1) + "\"; } }");
+            assertEquals(StringUtils.repeat("b", i + 1), reload());
+        }
+
+        GenerationTracker generationTracker = javaClassLoader.generationTracker;
+        long expectedUnloadedCount = RELOAD_CYCLES - MAX_LIVE_GENERATIONS;
+        long deadline = System.currentTimeMillis() + UNLOAD_TIMEOUT;
+        while (generationTracker.getUnloadedCount() < expectedUnloadedCount && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        assertTrue("Unloaded generations: " + generationTracker.getUnloadedCount(),
+                generationTracker.getUnloadedCount() >= expectedUnloadedCount);
+        assertTrue("Live generations: " + javaClassLoader.getLiveGenerations(),
+                generationTracker.size() <= MAX_LIVE_GENERATIONS);
+    }
+
+    /**
+     * Loads the current version of the class and fills the introspection caches which are purged on reload
+     */
+    private String reload() throws Exception {
+        javaClassLoader.loadClasses(Collections.singleton("p.A"), false);
+        Class<?> clazz = javaClassLoader.loadClass("p.A");
+        Introspector.getBeanInfo(clazz);
+        BeanUtils.getPropertyDescriptors(clazz);
+        return (String) clazz.getMethod("v").invoke(clazz.newInstance());
+    }
+
+    private void writeSource(String className, String source) throws IOException {
+        FileUtils.writeStringToFile(new File(rootDir.getRoot(), className.replace('.', '/') + ".java"), source);
+    }
+}
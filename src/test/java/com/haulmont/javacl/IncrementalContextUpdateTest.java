@@ -0,0 +1,143 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reloads the sample beans of com.haulmont.mvcclassloader and checks when the context is updated
+ * without a refresh
+ */
+public class IncrementalContextUpdateTest {
+    private static final String SAMPLE_PACKAGE = "com.haulmont.mvcclassloader";
+    private static final Set<String> SAMPLE_CLASSES = new HashSet<>(Arrays.asList(
+            SAMPLE_PACKAGE + ".SomeBeanImpl", SAMPLE_PACKAGE + ".WelcomeController"));
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private File rootDir;
+    private JavaClassLoader javaClassLoader;
+    private XmlWebApplicationContext applicationContext;
+
+    @Before
+    public void setUp() throws Exception {
+        rootDir = tempDir.newFolder("root");
+        for (String name : Arrays.asList("SomeBean", "SomeBeanImpl", "WelcomeController")) {
+            File source = new File("src/main/java/" + SAMPLE_PACKAGE.replace('.', '/') + "/" + name + ".java");
+            FileUtils.copyFileToDirectory(source, new File(rootDir, SAMPLE_PACKAGE.replace('.', '/')));
+        }
+        File config = tempDir.newFile("context.xml");
+        FileUtils.writeStringToFile(config, "<beans xmlns=\"http://www.springframework.org/schema/beans\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xmlns:context=\"http://www.springframework.org/schema/context\""
+                + " xmlns:mvc=\"http://www.springframework.org/schema/mvc\""
+                + " xsi:schemaLocation=\"http://www.springframework.org/schema/beans http://www.springframework.org/schema/beans/spring-beans.xsd"
+                + " http://www.springframework.org/schema/context http://www.springframework.org/schema/context/spring-context.xsd"
+                + " http://www.springframework.org/schema/mvc http://www.springframework.org/schema/mvc/spring-mvc.xsd\">"
+                + "<context:annotation-config/><mvc:annotation-driven/>"
+                + "<bean id=\"someBean\" class=\"" + SAMPLE_PACKAGE + ".SomeBeanImpl\"/>"
+                + "<bean id=\"welcomeController\" class=\"" + SAMPLE_PACKAGE + ".WelcomeController\"/>"
+                + "</beans>");
+
+        javaClassLoader = new JavaClassLoader(getClass().getClassLoader(), rootDir.getAbsolutePath(), null);
+        // a source of another size is detected as modified without waiting for the next file system timestamp
+        javaClassLoader.setContentFingerprints(true);
+        javaClassLoader.setIncrementalContextUpdate(true);
+        applicationContext = new XmlWebApplicationContext();
+        applicationContext.setConfigLocation(config.toURI().toString());
+        javaClassLoader.setApplicationContext(applicationContext);
+        applicationContext.refresh();
+    }
+
+    @After
+    public void tearDown() {
+        applicationContext.close();
+        javaClassLoader.destroy();
+    }
+
+    @Test
+    public void beanEditDoesNotRefreshContext() throws Exception {
+        Object beanFactory = applicationContext.getBeanFactory();
+        Object controller = applicationContext.getBean("welcomeController");
+        assertEquals("not reloaded", getVersion());
+
+        writeSource("SomeBeanImpl", FileUtils.readFileToString(getSourceFile("SomeBeanImpl"))
+                .replace("\"not reloaded\"", "\"reloaded\""));
+        javaClassLoader.loadClasses(SAMPLE_CLASSES, true);
+
+        assertSame(beanFactory, applicationContext.getBeanFactory());
+        assertNotSame(controller, applicationContext.getBean("welcomeController"));
+        assertEquals("reloaded", getVersion());
+        assertHandlerOf(applicationContext.getBean("welcomeController").getClass());
+    }
+
+    @Test
+    public void dependentControllerIsReRegisteredWithoutRefresh() throws Exception {
+        Object beanFactory = applicationContext.getBeanFactory();
+        Class<?> controllerClass = applicationContext.getBean("welcomeController").getClass();
+
+        writeSource("SomeBean", FileUtils.readFileToString(getSourceFile("SomeBean")) + "// modified\n");
+        ReloadResult result = javaClassLoader.loadClasses(SAMPLE_CLASSES, true);
+
+        assertTrue(result.getCompiledClasses().contains(SAMPLE_PACKAGE + ".WelcomeController"));
+        assertSame(beanFactory, applicationContext.getBeanFactory());
+        assertNotSame(controllerClass, applicationContext.getBean("welcomeController").getClass());
+        assertEquals("not reloaded", getVersion());
+        assertHandlerOf(applicationContext.getBean("welcomeController").getClass());
+    }
+
+    @Test
+    public void controllerEditRefreshesContext() throws Exception {
+        Object beanFactory = applicationContext.getBeanFactory();
+
+        writeSource("WelcomeController", FileUtils.readFileToString(getSourceFile("WelcomeController"))
+                .replace("\"version\"", "\"release\""));
+        javaClassLoader.loadClasses(SAMPLE_CLASSES, true);
+
+        assertNotSame(beanFactory, applicationContext.getBeanFactory());
+        assertHandlerOf(applicationContext.getBean("welcomeController").getClass());
+    }
+
+    private String getVersion() throws Exception {
+        Object controller = applicationContext.getBean("welcomeController");
+        ModelAndView modelAndView = (ModelAndView) controller.getClass().getMethod("welcome").invoke(controller);
+        return (String) modelAndView.getModel().get("version");
+    }
+
+    /**
+     * Checks that requests are mapped to the methods of the current controller class
+     */
+    private void assertHandlerOf(Class<?> controllerClass) {
+        RequestMappingHandlerMapping handlerMapping = applicationContext.getBean(RequestMappingHandlerMapping.class);
+        for (HandlerMethod handlerMethod : handlerMapping.getHandlerMethods().values()) {
+            assertSame(controllerClass, handlerMethod.getMethod().getDeclaringClass());
+        }
+    }
+
+    private File getSourceFile(String name) {
+        return new File(rootDir, SAMPLE_PACKAGE.replace('.', '/') + "/" + name + ".java");
+    }
+
+    private void writeSource(String name, String source) throws IOException {
+        FileUtils.writeStringToFile(getSourceFile(name), source);
+    }
+}
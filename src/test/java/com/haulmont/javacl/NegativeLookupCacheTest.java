@@ -0,0 +1,101 @@
+package com.haulmont.javacl;
+
+import com.haulmont.javacl.compiler.NegativeLookupCache;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that remembered misses of the parent delegation do not hide classes which appear later
+ */
+public class NegativeLookupCacheTest {
+    private static final String MISSING_CLASS_NAME = "p.Missing";
+
+    private AtomicReference<GenerationSnapshot> snapshot;
+    private ProxyClassLoader proxyClassLoader;
+
+    @Before
+    public void setUp() {
+        snapshot = new AtomicReference<>(GenerationSnapshot.EMPTY);
+        proxyClassLoader = new ProxyClassLoader(getClass().getClassLoader(), snapshot);
+    }
+
+    @Test
+    public void repeatedMissIsStackless() {
+        ClassNotFoundException first = loadMissing(proxyClassLoader);
+        ClassNotFoundException second = loadMissing(proxyClassLoader);
+
+        assertTrue(first.getStackTrace().length > 0);
+        assertEquals(0, second.getStackTrace().length);
+        assertEquals(MISSING_CLASS_NAME, second.getMessage());
+    }
+
+    @Test
+    public void publishedClassHidesMiss() throws Exception {
+        loadMissing(proxyClassLoader);
+
+        TimestampClass published = new TimestampClass(String.class, new Date());
+        snapshot.set(GenerationSnapshot.EMPTY.next(Collections.<String>emptySet(),
+                Collections.singletonMap(MISSING_CLASS_NAME, published)));
+
+        assertSame(String.class, proxyClassLoader.loadClass(MISSING_CLASS_NAME));
+    }
+
+    @Test
+    public void draftClassHidesMissOfSharedCache() throws Exception {
+        loadMissing(proxyClassLoader);
+
+        GenerationDraft draft = new GenerationDraft(snapshot);
+        ProxyClassLoader draftClassLoader = proxyClassLoader.forDraft(draft);
+        loadMissing(draftClassLoader);
+        draft.add(Collections.singletonMap(MISSING_CLASS_NAME, new TimestampClass(String.class, new Date())));
+
+        assertSame(String.class, draftClassLoader.loadClass(MISSING_CLASS_NAME));
+        // other compilations do not see the draft
+        loadMissing(proxyClassLoader);
+
+        draft.close();
+        loadMissing(draftClassLoader);
+    }
+
+    @Test
+    public void removedNameIsForgotten() {
+        NegativeLookupCache cache = new NegativeLookupCache();
+        cache.add(MISSING_CLASS_NAME);
+        assertTrue(cache.contains(MISSING_CLASS_NAME));
+
+        cache.remove(MISSING_CLASS_NAME);
+        assertFalse(cache.contains(MISSING_CLASS_NAME));
+    }
+
+    @Test
+    public void cacheIsClearedOverLimit() {
+        NegativeLookupCache cache = new NegativeLookupCache(2);
+        cache.add("p.A");
+        cache.add("p.B");
+        cache.add("p.C");
+
+        assertFalse(cache.contains("p.A"));
+        assertFalse(cache.contains("p.B"));
+        assertTrue(cache.contains("p.C"));
+    }
+
+    private ClassNotFoundException loadMissing(ClassLoader classLoader) {
+        try {
+            classLoader.loadClass(MISSING_CLASS_NAME);
+            fail(MISSING_CLASS_NAME + " should not be found");
+            return null;
+        } catch (ClassNotFoundException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.haulmont.javacl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a modified class is served in its last compiled version while it is recompiled in background
+ */
+public class StaleWhileRevalidateTest {
+    @Rule
+    public TemporaryFolder rootDir = new TemporaryFolder();
+
+    private JavaClassLoader javaClassLoader;
+    private Class<?> staleClass;
+
+    @Before
+    public void setUp() throws Exception {
+        writeSource("p.A", "package p; public class A { public String v() { return \"a\"; } }");
+        javaClassLoader = new JavaClassLoader(getClass().getClassLoader(), rootDir.getRoot().getAbsolutePath(), null);
+        // a source of another size is detected as modified without waiting for the next file system timestamp
+        javaClassLoader.setContentFingerprints(true);
+        javaClassLoader.setStaleWhileRevalidate(true);
+        javaClassLoader.setApplicationContext(new XmlWebApplicationContext() {
+            @Override
+            public void refresh() {
+            }
+        });
+        staleClass = javaClassLoader.loadClass("p.A");
+    }
+
+    @After
+    public void tearDown() {
+        javaClassLoader.destroy();
+    }
+
+    @Test
+    public void staleClassIsServedUntilRecompiled() throws Exception {
+        writeSource("p.A", "package p; public class A { public String v() { return \"aa\"; } }");
+
+        assertSame(staleClass, javaClassLoader.loadClass("p.A"));
+        Class<?> newClass = javaClassLoader.loadClassAsync("p.A").get();
+        assertEquals("aa", v(newClass));
+        assertSame(newClass, javaClassLoader.loadClass("p.A"));
+    }
+
+    @Test
+    public void staleClassIsServedAfterCompilationError() throws Exception {
+        writeSource("p.A", "package p; public class A { public String v() { return \"aa\" } }");
+
+        assertSame(staleClass, javaClassLoader.loadClass("p.A"));
+        try {
+            javaClassLoader.loadClassAsync("p.A").get();
+            fail("Compilation error expected");
+        } catch (ExecutionException e) {
+            // the previous version stays in use
+        }
+        assertSame(staleClass, javaClassLoader.loadClass("p.A"));
+    }
+
+    @Test
+    public void newClassIsCompiledByCaller() throws Exception {
+        writeSource("p.B", "package p; public class B { public String v() { return \"b\"; } }");
+
+        assertEquals("b", v(javaClassLoader.loadClass("p.B")));
+    }
+
+    private String v(Class<?> clazz) throws Exception {
+        return (String) clazz.getMethod("v").invoke(clazz.newInstance());
+    }
+
+    private void writeSource(String className, String source) throws IOException {
+        FileUtils.writeStringToFile(new File(rootDir.getRoot(), className.replace('.', '/') + ".java"), source);
+    }
+}